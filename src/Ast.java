@@ -24,6 +24,51 @@ enum AstNode {
     Continue
 }
 
+enum Operator {
+    Add("+"),
+    Subtract("-"),
+    Multiply("*"),
+    Divide("/"),
+    Modulo("%"),
+    Equals("=="),
+    NotEqual("!="),
+    LessThan("<"),
+    GreaterThan(">"),
+    LessThanOrEqual("<="),
+    GreaterThanOrEqual(">="),
+    And("and"),
+    Or("or"),
+    Not("not");
+
+    public final String symbol;
+
+    private static final HashMap<String, Operator> SYMBOLS = new HashMap<>();
+
+    static {
+        for(Operator op: values()) {
+            SYMBOLS.put(op.symbol, op);
+        }
+    }
+
+    Operator(String symbol) {
+        this.symbol = symbol;
+    }
+
+    // Resolves the operator once while parsing so evaluation never compares strings
+    static Operator fromSymbol(String symbol) {
+        var op = SYMBOLS.get(symbol);
+        if(op == null) {
+            throw new DexError("Parser error: Unknown operator " + symbol);
+        }
+        return op;
+    }
+
+    @Override
+    public String toString() {
+        return symbol;
+    }
+}
+
 abstract class Stmt {
     public AstNode kind;
 
@@ -81,6 +126,10 @@ class Identifier extends Expr {
     public AstNode kind = AstNode.Identifier;
     public String symbol;
 
+    // Lexical address filled in by the Resolver: frames to walk up and the slot in that frame
+    public int depth = 0;
+    public int slot = -1;
+
     public Identifier(String symbol) {
         this.symbol = symbol;
     }
@@ -102,10 +151,18 @@ class NumericLiteral extends Expr {
     public AstNode kind = AstNode.NumericLiteral;
     public Double value;
 
+    // Value of the literal, created once and shared by every evaluation
+    private RNumberValue runtimeValue;
+
     public NumericLiteral(Double value) {
         this.value = value;
     }
 
+    public RNumberValue runtimeValue() {
+        if(runtimeValue == null) runtimeValue = RNumberValue.of(value);
+        return runtimeValue;
+    }
+
     @Override
     public String toString() {
         return "NumericLiteral{" +
@@ -136,7 +193,7 @@ class BinaryExpr extends Expr {
     public AstNode kind = AstNode.BinaryExpr;
     public Expr left;
     public Expr right;
-    public String op;
+    public Operator op;
 
     @Override
     public String toString() {
@@ -158,6 +215,11 @@ class CallExpr extends Expr {
     public ArrayList<Expr> args;
     public Expr caller;
 
+    // Set by the Resolver for calls whose result the enclosing function returns directly.
+    // reusesFrame tells that no closure captures the caller's frame, so a self call may overwrite it
+    public boolean isTailCall = false;
+    public boolean reusesFrame = false;
+
     public CallExpr() {}
 
     public CallExpr(ArrayList<Expr> args, Expr caller) {
@@ -209,10 +271,17 @@ class MemberExpr extends Expr {
 class Atom extends Expr {
     public String value;
 
+    private RAtomValue runtimeValue;
+
     public Atom(String value) {
         this.value = value;
     }
 
+    public RAtomValue runtimeValue() {
+        if(runtimeValue == null) runtimeValue = RAtomValue.of(value);
+        return runtimeValue;
+    }
+
     @Override
     public String toString() {
         return "Atom{" +
@@ -229,43 +298,65 @@ class Atom extends Expr {
 class StringLiteral extends Expr {
 
     public String value;
-    private ArrayList<String> interpolatedString;
+
+    // Literal chunks around the interpolated expressions: chunk, value, chunk, ..., value, chunk
+    // There is always one more chunk than there are interpolated values
+    private ArrayList<String> chunks;
     private ArrayList<Stmt> interpolatedValues;
 
+    // Total length of the literal chunks, used to presize the result
+    private int literalLength;
+
+    private RStringValue runtimeValue;
+
     public StringLiteral() {
         this.interpolatedValues = new ArrayList<>();
-        this.interpolatedString = new ArrayList<>();
+        this.chunks = new ArrayList<>();
     }
 
     public StringLiteral(String value) {
         this.value = value;
         this.interpolatedValues = new ArrayList<>();
-        this.interpolatedString = new ArrayList<>();
+        this.chunks = new ArrayList<>();
     }
 
-    public void addInterpolatedString(String val) {
-        this.interpolatedString.add(val);
+    public void addChunk(String chunk) {
+        this.chunks.add(chunk);
+        this.literalLength += chunk.length();
     }
 
     public void addInterpolatedValue(Stmt expr) {
         this.interpolatedValues.add(expr);
     }
 
+    public boolean isInterpolated() {
+        return !this.interpolatedValues.isEmpty();
+    }
 
-    public ArrayList<String> getInterpolatedString() {
-        return interpolatedString;
+    public ArrayList<String> getChunks() {
+        return chunks;
     }
 
     public ArrayList<Stmt> getInterpolatedValues() {
         return interpolatedValues;
     }
 
+    public int getLiteralLength() {
+        return literalLength;
+    }
+
+    // Value of a literal without interpolation, created once and shared by every evaluation
+    public RStringValue runtimeValue() {
+        if(runtimeValue == null) runtimeValue = new RStringValue(value);
+        return runtimeValue;
+    }
+
 
     @Override
     public String toString() {
         return "StringLiteral{" +
                 "value='" + value + '\'' +
-                ", interpolatedString=" + interpolatedString +
+                ", chunks=" + chunks +
                 ", interpolatedValues=" + interpolatedValues +
                 '}';
     }
@@ -280,12 +371,12 @@ class StringLiteral extends Expr {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         StringLiteral that = (StringLiteral) o;
-        return Objects.equals(value, that.value) && Objects.equals(interpolatedString, that.interpolatedString) && Objects.equals(interpolatedValues, that.interpolatedValues);
+        return Objects.equals(value, that.value) && Objects.equals(chunks, that.chunks) && Objects.equals(interpolatedValues, that.interpolatedValues);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(value, interpolatedString, interpolatedValues);
+        return Objects.hash(value, chunks, interpolatedValues);
     }
 }
 
@@ -413,6 +504,9 @@ class IfNode extends Stmt {
     public ArrayList<Stmt> block;
     public Boolean isElse;
 
+    // Number of slots needed by the block scope
+    public int frameSize;
+
     public IfNode(Expr condition, ArrayList<Stmt> block, Boolean isElse) {
         this.condition = condition;
         this.block = block;
@@ -444,6 +538,9 @@ class IfNode extends Stmt {
 class ReturnStatement extends Stmt {
     public Expr returnValue;
 
+    // Set by the Resolver for a return outside of any function. It is reported and the program goes on
+    public boolean topLevel = false;
+
     public ReturnStatement(Expr returnValue) {
         this.returnValue = returnValue;
     }
@@ -462,6 +559,9 @@ class AnonymousFn extends Expr {
 
     public Expr returnExpr;
 
+    // Number of slots needed by the call scope
+    public int frameSize;
+
     public AnonymousFn(ArrayList<Expr> parameters, Expr returnExpr) {
         this.parameters = parameters;
         this.returnExpr = returnExpr;
@@ -492,6 +592,10 @@ class FunctionDeclaration extends Stmt {
     public ArrayList<Expr> parameters;
     public ArrayList<Stmt> body;
 
+    // Slot of the function name in the declaring scope and the number of slots needed by the call scope
+    public int slot = -1;
+    public int frameSize;
+
     public FunctionDeclaration(String functionName, ArrayList<Expr> parameters, ArrayList<Stmt> body) {
         this.functionName = functionName;
         this.parameters = parameters;
@@ -0,0 +1,350 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// On-disk cache of parsed programs, so running an unchanged script skips the Lexer and the Parser.
+// The .dxc file goes next to the source, or into -Ddex.cacheDir named by the hash of the source, and is only used
+// when both the SHA-256 of the source and the interpreter version match. -Ddex.cache=false turns it off.
+// The tree is stored as the Parser produced it: the Resolver still runs after loading, because the slots it
+// assigns depend on the global Environment the program runs in
+final class AstCache {
+
+    private AstCache() {}
+
+    static final boolean ENABLED = !"false".equals(System.getProperty("dex.cache"));
+
+    private static final int MAGIC = 0x44584301; // "DXC" 1
+    // Bump whenever the encoding below or the shape of the AST changes
+    private static final int FORMAT_VERSION = 1;
+    private static final int NULL_NODE = 0xFF;
+
+    // The hash is taken over the bytes of the file, a hit never decodes the source
+    static Program load(Path sourcePath, ByteBuffer source) {
+        if(!ENABLED) return new Parser().produceAst(Main.decode(source));
+
+        byte[] hash = sha256(source);
+        Path cachePath = cachePath(sourcePath, hash);
+        Program program = read(cachePath, hash);
+        if(program != null) return program;
+
+        program = new Parser().produceAst(Main.decode(source));
+        write(cachePath, hash, program);
+        return program;
+    }
+
+    private static Path cachePath(Path sourcePath, byte[] hash) {
+        String cacheDir = System.getProperty("dex.cacheDir");
+        if(cacheDir == null) {
+            return sourcePath.resolveSibling(sourcePath.getFileName() + "c");
+        }
+        var name = new StringBuilder();
+        for(byte b: hash) name.append(String.format("%02x", b));
+        return Path.of(cacheDir, name.append(".dxc").toString());
+    }
+
+    // Null when there is no usable entry. A stale or unreadable file is a miss, never an error
+    private static Program read(Path cachePath, byte[] hash) {
+        if(!Files.isRegularFile(cachePath)) return null;
+        try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cachePath)))) {
+            if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !in.readUTF().equals(Main.VERSION)) return null;
+            byte[] storedHash = new byte[hash.length];
+            in.readFully(storedHash);
+            if(!Arrays.equals(storedHash, hash)) return null;
+
+            var program = new Program();
+            program.body = new Decoder(in).readStmts();
+            return program;
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Written to a temporary file and moved into place, so a concurrent run never reads half a file
+    private static void write(Path cachePath, byte[] hash, Program program) {
+        Path temp = null;
+        try {
+            Path dir = cachePath.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            temp = Files.createTempFile(dir, ".dxc", ".tmp");
+            try(var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(Main.VERSION);
+                out.write(hash);
+                new Encoder(out).writeStmts(program.body);
+            }
+            Files.move(temp, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            // Read only location and the like, the script still runs from the parsed tree
+            try {
+                if(temp != null) Files.deleteIfExists(temp);
+            }
+            catch (IOException ignored) {}
+        }
+    }
+
+    private static byte[] sha256(ByteBuffer source) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Nodes are written as the ordinal of their kind followed by their children. Counts and string indexes are
+    // variable length, a byte for anything below 128. Strings are written once, later occurrences refer to the
+    // first one by index
+    private static final class Encoder {
+        private final DataOutputStream out;
+        private final HashMap<String, Integer> strings = new HashMap<>();
+
+        Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writeCount(int value) throws IOException {
+            while((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        void writeStmts(ArrayList<? extends Stmt> stmts) throws IOException {
+            writeCount(stmts.size());
+            for(var stmt: stmts) writeNode(stmt);
+        }
+
+        void writeString(String value) throws IOException {
+            // 0 is null, index + 1 otherwise
+            if(value == null) {
+                writeCount(0);
+                return;
+            }
+            var index = strings.get(value);
+            if(index != null) {
+                writeCount(index + 1);
+                return;
+            }
+            // A new string is announced by the next free index, its bytes follow
+            writeCount(strings.size() + 1);
+            strings.put(value, strings.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeCount(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeNode(Stmt node) throws IOException {
+            if(node == null) {
+                out.writeByte(NULL_NODE);
+                return;
+            }
+            out.writeByte(node.getKind().ordinal());
+            switch (node.getKind()) {
+                case NumericLiteral -> out.writeDouble(((NumericLiteral) node).value);
+                case StringLiteral -> {
+                    var literal = (StringLiteral) node;
+                    writeString(literal.value);
+                    writeCount(literal.getChunks().size());
+                    for(var chunk: literal.getChunks()) writeString(chunk);
+                    writeStmts(literal.getInterpolatedValues());
+                }
+                case Identifier -> writeString(((Identifier) node).symbol);
+                case Atom -> writeString(((Atom) node).value);
+                case BinaryExpr -> {
+                    var binaryExpr = (BinaryExpr) node;
+                    out.writeByte(binaryExpr.op.ordinal());
+                    writeNode(binaryExpr.left);
+                    writeNode(binaryExpr.right);
+                }
+                case MatchExpr -> {
+                    writeNode(((MatchExpr) node).toAssigned);
+                    writeNode(((MatchExpr) node).value);
+                }
+                case CallExpr -> {
+                    writeNode(((CallExpr) node).caller);
+                    writeStmts(((CallExpr) node).args);
+                }
+                case MemberExpr -> {
+                    var memberExpr = (MemberExpr) node;
+                    writeNode(memberExpr.object);
+                    writeNode(memberExpr.property);
+                    out.writeBoolean(memberExpr.computed);
+                }
+                case Tuple -> writeStmts(((Tuple) node).contents);
+                case List -> writeStmts(((ListStructure) node).contents);
+                case Map -> {
+                    var map = ((MapStructure) node).map;
+                    writeCount(map.size());
+                    for(var entry: map.entrySet()) {
+                        writeNode(entry.getKey());
+                        writeNode(entry.getValue());
+                    }
+                }
+                case IfStatement -> {
+                    var clauses = ((IfStatement) node).clauses;
+                    writeCount(clauses.size());
+                    for(var clause: clauses) {
+                        out.writeBoolean(clause.isElse);
+                        writeNode(clause.condition);
+                        writeStmts(clause.block);
+                    }
+                }
+                case While -> {
+                    writeNode(((WhileStatement) node).condition);
+                    writeStmts(((WhileStatement) node).body);
+                }
+                case FunctionDeclaration -> {
+                    var fd = (FunctionDeclaration) node;
+                    writeString(fd.functionName);
+                    writeStmts(fd.parameters);
+                    writeStmts(fd.body);
+                }
+                case AnonymousFn -> {
+                    writeStmts(((AnonymousFn) node).parameters);
+                    writeNode(((AnonymousFn) node).returnExpr);
+                }
+                case ReturnStatement -> writeNode(((ReturnStatement) node).returnValue);
+                case Break, Continue -> {}
+                default -> throw new IllegalArgumentException("Cannot cache " + node.getKind());
+            }
+        }
+    }
+
+    private static final class Decoder {
+        private final DataInputStream in;
+        private final ArrayList<String> strings = new ArrayList<>();
+
+        Decoder(DataInputStream in) {
+            this.in = in;
+        }
+
+        int readCount() throws IOException {
+            int value = 0;
+            for(int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) return value;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <T extends Stmt> ArrayList<T> readStmts() throws IOException {
+            int size = readCount();
+            var stmts = new ArrayList<T>(size);
+            for(int i = 0; i < size; i++) stmts.add((T) readNode());
+            return stmts;
+        }
+
+        String readString() throws IOException {
+            int index = readCount() - 1;
+            if(index == -1) return null;
+            if(index < strings.size()) return strings.get(index);
+            byte[] bytes = new byte[readCount()];
+            in.readFully(bytes);
+            var value = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        Expr readExpr() throws IOException {
+            return (Expr) readNode();
+        }
+
+        Stmt readNode() throws IOException {
+            int tag = in.readUnsignedByte();
+            if(tag == NULL_NODE) return null;
+            return switch (AstNode.values()[tag]) {
+                case NumericLiteral -> new NumericLiteral(in.readDouble());
+                case StringLiteral -> {
+                    var literal = new StringLiteral(readString());
+                    int chunks = readCount();
+                    for(int i = 0; i < chunks; i++) literal.addChunk(readString());
+                    for(var value: this.<Stmt>readStmts()) literal.addInterpolatedValue(value);
+                    yield literal;
+                }
+                case Identifier -> new Identifier(readString());
+                case Atom -> new Atom(readString());
+                case BinaryExpr -> {
+                    var binaryExpr = new BinaryExpr();
+                    binaryExpr.op = Operator.values()[in.readUnsignedByte()];
+                    binaryExpr.left = readExpr();
+                    binaryExpr.right = readExpr();
+                    yield binaryExpr;
+                }
+                case MatchExpr -> {
+                    var toAssigned = readExpr();
+                    yield new MatchExpr(toAssigned, readExpr());
+                }
+                case CallExpr -> {
+                    var caller = readExpr();
+                    yield new CallExpr(readStmts(), caller);
+                }
+                case MemberExpr -> {
+                    var object = readExpr();
+                    var property = readExpr();
+                    yield new MemberExpr(object, property, in.readBoolean());
+                }
+                case Tuple -> {
+                    var tuple = new Tuple();
+                    tuple.contents = readStmts();
+                    yield tuple;
+                }
+                case List -> {
+                    var list = new ListStructure();
+                    list.contents = readStmts();
+                    yield list;
+                }
+                case Map -> {
+                    var map = new MapStructure();
+                    int size = readCount();
+                    for(int i = 0; i < size; i++) {
+                        var key = readExpr();
+                        map.map.put(key, readExpr());
+                    }
+                    yield map;
+                }
+                case IfStatement -> {
+                    var ifStatement = new IfStatement();
+                    int clauses = readCount();
+                    for(int i = 0; i < clauses; i++) {
+                        boolean isElse = in.readBoolean();
+                        var condition = readExpr();
+                        ifStatement.clauses.add(new IfNode(condition, readStmts(), isElse));
+                    }
+                    yield ifStatement;
+                }
+                case While -> {
+                    var condition = readExpr();
+                    yield new WhileStatement(condition, readStmts());
+                }
+                case FunctionDeclaration -> {
+                    var name = readString();
+                    var parameters = this.<Expr>readStmts();
+                    yield new FunctionDeclaration(name, parameters, readStmts());
+                }
+                case AnonymousFn -> {
+                    var parameters = this.<Expr>readStmts();
+                    yield new AnonymousFn(parameters, readExpr());
+                }
+                case ReturnStatement -> new ReturnStatement(readExpr());
+                case Break -> new BreakStatement();
+                case Continue -> new ContinueStatement();
+                default -> throw new IllegalStateException("Unexpected node in cache: " + tag);
+            };
+        }
+    }
+}
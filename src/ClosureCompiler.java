@@ -0,0 +1,696 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Alternative execution engine. Turns a resolved Program into a tree of pre-linked nodes once,
+// each with its own execute method, instead of re-dispatching on the AstNode kind at every visit.
+// Select it with -Ddex.engine=closure
+public class ClosureCompiler {
+
+    abstract static class Node {
+        abstract RuntimeValue execute(Environment frame);
+    }
+
+    static class CompiledProgram {
+        private final Node[] body;
+
+        CompiledProgram(Node[] body) {
+            this.body = body;
+        }
+
+        RuntimeValue execute(Environment env) {
+            RuntimeValue lastEvaluated = RNullValue.NULL;
+            for(Node stmt: body) {
+                lastEvaluated = stmt.execute(env);
+                if(lastEvaluated.getKind() == RuntimeValueType.Break || lastEvaluated.getKind() == RuntimeValueType.Continue) {
+                    throw new DexError("Top level break/continue statements are not allowed");
+                }
+            }
+            return lastEvaluated;
+        }
+    }
+
+    // Function values created by this engine keep their compiled body next to the AST,
+    // native modules that only know the AST can still call them through the Interpreter
+    static class CompiledFunction extends RFunctionValue {
+        final Node[] compiledBody;
+
+        CompiledFunction(FunctionDeclaration fd, Node[] compiledBody, Environment declarationEnv) {
+            super(fd.functionName, fd.parameters, fd.body, fd.frameSize, declarationEnv);
+            this.compiledBody = compiledBody;
+        }
+    }
+
+    static class CompiledAnonymousFn extends RAnonymousFn {
+        final Node compiledReturn;
+
+        CompiledAnonymousFn(AnonymousFn fn, Node compiledReturn, Environment declarationEnv) {
+            super(fn.parameters, fn.returnExpr, fn.frameSize, declarationEnv);
+            this.compiledReturn = compiledReturn;
+        }
+    }
+
+    // Number of enclosing function declarations. Return statements outside of a function are reported
+    private int functionDepth = 0;
+
+    public static CompiledProgram compileProgram(Program program) {
+        return new CompiledProgram(new ClosureCompiler().compileBody(program.body));
+    }
+
+    public static RuntimeValue run(Program program, Environment env) {
+        return compileProgram(program).execute(env);
+    }
+
+    private Node[] compileBody(ArrayList<? extends Stmt> body) {
+        Node[] nodes = new Node[body.size()];
+        for(int i = 0; i < nodes.length; i++) {
+            nodes[i] = this.compile(body.get(i));
+        }
+        return nodes;
+    }
+
+    private Node compile(Stmt astNode) {
+        if(astNode.getKind() == null) {
+            return new ConstantNull();
+        }
+        switch (astNode.getKind()) {
+            case NumericLiteral -> {
+                return new ConstantNode(((NumericLiteral) astNode).runtimeValue());
+            }
+            case StringLiteral -> {
+                var string = (StringLiteral) astNode;
+                if(!string.isInterpolated()) {
+                    return new ConstantNode(string.runtimeValue());
+                }
+                return new InterpolatedStringNode(string, this.compileBody(string.getInterpolatedValues()));
+            }
+            case Atom -> {
+                return new ConstantNode(((Atom) astNode).runtimeValue());
+            }
+            case Identifier -> {
+                return new ReadNode((Identifier) astNode);
+            }
+            case BinaryExpr -> {
+                var binExp = (BinaryExpr) astNode;
+                return new BinaryNode(binExp.op, this.compile(binExp.left), this.compile(binExp.right));
+            }
+            case MatchExpr -> {
+                return this.compileMatchExpr((MatchExpr) astNode);
+            }
+            case CallExpr -> {
+                var callExpr = (CallExpr) astNode;
+                if(callExpr.isTailCall) {
+                    return new TailCallNode(this.compile(callExpr.caller), this.compileBody(callExpr.args), callExpr.reusesFrame);
+                }
+                return new CallNode(this.compile(callExpr.caller), this.compileBody(callExpr.args));
+            }
+            case MemberExpr -> {
+                var memberExpr = (MemberExpr) astNode;
+                if(memberExpr.property.getKind() != AstNode.Identifier) {
+                    return new ErrorNode("Error: RHS of a member expression should be a function call of the module", true);
+                }
+                return new MemberNode(this.compile(memberExpr.object), ((Identifier) memberExpr.property).symbol);
+            }
+            case Tuple -> {
+                return new TupleNode(this.compileBody(((Tuple) astNode).contents));
+            }
+            case List -> {
+                return new ListNode(this.compileBody(((ListStructure) astNode).contents));
+            }
+            case Map -> {
+                var map = (MapStructure) astNode;
+                Node[] keys = new Node[map.map.size()];
+                Node[] values = new Node[map.map.size()];
+                int i = 0;
+                for(Map.Entry<Expr, Expr> entry: map.map.entrySet()) {
+                    // Identifier keys are read as atoms
+                    keys[i] = entry.getKey().getKind() == AstNode.Identifier
+                            ? new ConstantNode(RAtomValue.of(((Identifier) entry.getKey()).symbol))
+                            : this.compile(entry.getKey());
+                    values[i] = this.compile(entry.getValue());
+                    i++;
+                }
+                return new MapNode(keys, values);
+            }
+            case IfStatement -> {
+                var clauses = ((IfStatement) astNode).clauses;
+                ClauseNode[] nodes = new ClauseNode[clauses.size()];
+                for(int i = 0; i < nodes.length; i++) {
+                    var clause = clauses.get(i);
+                    nodes[i] = new ClauseNode(clause.isElse ? null : this.compile(clause.condition), this.compileBody(clause.block), clause.frameSize);
+                }
+                return new IfNode(nodes);
+            }
+            case While -> {
+                var whileStatement = (WhileStatement) astNode;
+                return new WhileNode(this.compile(whileStatement.condition), this.compileBody(whileStatement.body));
+            }
+            case FunctionDeclaration -> {
+                var fd = (FunctionDeclaration) astNode;
+                this.functionDepth++;
+                var body = this.compileBody(fd.body);
+                this.functionDepth--;
+                return new FunctionNode(fd, body);
+            }
+            case AnonymousFn -> {
+                var fn = (AnonymousFn) astNode;
+                return new AnonymousFnNode(fn, this.compile(fn.returnExpr));
+            }
+            case ReturnStatement -> {
+                var value = this.compile(((ReturnStatement) astNode).returnValue);
+                if(value instanceof TailCallNode) {
+                    return value;
+                }
+                if(this.functionDepth == 0) {
+                    return new TopLevelReturnNode(value);
+                }
+                return new ReturnNode(value);
+            }
+            case Break -> {
+                return new BreakNode();
+            }
+            case Continue -> {
+                return new ContinueNode();
+            }
+            default -> {
+                return new ErrorNode("This AST Node has not yet been setup for interpretation. " + astNode, false);
+            }
+        }
+    }
+
+    private Node compileMatchExpr(MatchExpr matchExpr) {
+        var value = this.compile(matchExpr.value);
+        switch (matchExpr.toAssigned.getKind()) {
+            case Identifier -> {
+                return new AssignNode((Identifier) matchExpr.toAssigned, value);
+            }
+            case Tuple, List -> {
+                var isTuple = matchExpr.toAssigned.getKind() == AstNode.Tuple;
+                var contents = isTuple ? ((Tuple) matchExpr.toAssigned).contents : ((ListStructure) matchExpr.toAssigned).contents;
+                var kind = isTuple ? RuntimeValueType.Tuple : RuntimeValueType.List;
+
+                // Check whether the functionality is pattern matching or multiple assignment
+                if(!contents.isEmpty() && contents.stream().allMatch(n -> n.getKind() == AstNode.Identifier)) {
+                    return new DestructureNode(kind, contents.toArray(new Identifier[0]), value, matchExpr.value);
+                }
+                return new PatternNode(kind, this.compileBody(contents), value, matchExpr.value);
+            }
+            default -> {
+                return new ErrorNode("Invalid LHS of the Match expression " + matchExpr.toAssigned, false);
+            }
+        }
+    }
+
+    // Calls a function value, running the compiled body when there is one.
+    // Tail calls come back as RTailCall and are made by the loop here, like in Interpreter.callFunction
+    static RuntimeValue invoke(RuntimeValue fn, ArrayList<RuntimeValue> args, Environment env) {
+        try {
+            Environment scope = null;
+            boolean reuseFrame = false;
+            while(true) {
+                RuntimeValue result;
+                if(fn instanceof CompiledFunction fnValue) {
+                    Interpreter.checkArity(fn, fnValue.parameters, args);
+                    scope = Interpreter.enterFrame(scope, reuseFrame, fnValue.declarationEnv, fnValue.frameSize);
+                    for(int i = 0; i < fnValue.parameters.size(); i++) {
+                        scope.declareVariable((Identifier) fnValue.parameters.get(i), args.get(i));
+                    }
+                    result = RNullValue.NULL;
+                    for(Node stmt: fnValue.compiledBody) {
+                        var completion = stmt.execute(scope);
+                        if(completion.getKind() == RuntimeValueType.Break || completion.getKind() == RuntimeValueType.Continue) {
+                            throw new DexError("Top level break/continue statements are not allowed");
+                        }
+                        if(completion.getKind() == RuntimeValueType.Return) {
+                            result = completion instanceof RTailCall ? completion : ((RReturn) completion).value;
+                            break;
+                        }
+                    }
+                }
+                else if(fn instanceof CompiledAnonymousFn fnValue) {
+                    Interpreter.checkArity(fn, fnValue.parameters, args);
+                    scope = Interpreter.enterFrame(scope, reuseFrame, fnValue.declarationEnv, fnValue.frameSize);
+                    for(int i = 0; i < fnValue.parameters.size(); i++) {
+                        scope.declareVariable((Identifier) fnValue.parameters.get(i), args.get(i));
+                    }
+                    result = fnValue.compiledReturn.execute(scope);
+                }
+                else {
+                    return Interpreter.callFunction(fn, args, env);
+                }
+
+                if(!(result instanceof RTailCall tailCall)) {
+                    return result;
+                }
+                reuseFrame = tailCall.reusesFrame && tailCall.fn == fn;
+                fn = tailCall.fn;
+                args = tailCall.args;
+            }
+        }
+        catch (StackOverflowError e) {
+            throw Interpreter.stackOverflow(fn);
+        }
+    }
+
+    // Runs a block and hands back break, continue and return completions to the caller
+    private static RuntimeValue executeBlock(Node[] body, Environment frame) {
+        for(Node stmt: body) {
+            var result = stmt.execute(frame);
+            switch (result.getKind()) {
+                case Break, Continue, Return -> {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    static class ConstantNull extends Node {
+        @Override
+        RuntimeValue execute(Environment frame) {
+            return RNullValue.NULL;
+        }
+    }
+
+    static class ErrorNode extends Node {
+        private final String message;
+        private final boolean isException;
+
+        ErrorNode(String message, boolean isException) {
+            this.message = message;
+            this.isException = isException;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            if(isException) {
+                throw new RuntimeException(message);
+            }
+            throw new DexError(message);
+        }
+    }
+
+    // Literal values are created once at compile time and shared by every execution
+    static class ConstantNode extends Node {
+        private final RuntimeValue value;
+
+        ConstantNode(RuntimeValue value) {
+            this.value = value;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            return value;
+        }
+    }
+
+    static class InterpolatedStringNode extends Node {
+        private final String[] chunks;
+        private final Node[] values;
+        private final int literalLength;
+
+        InterpolatedStringNode(StringLiteral string, Node[] values) {
+            this.chunks = string.getChunks().toArray(new String[0]);
+            this.values = values;
+            this.literalLength = string.getLiteralLength();
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            StringBuilder res = new StringBuilder(literalLength + 16 * values.length);
+            res.append(chunks[0]);
+            for(int i = 0; i < values.length; i++) {
+                res.append(values[i].execute(frame).toRawString());
+                res.append(chunks[i + 1]);
+            }
+            return new RStringValue(res.toString());
+        }
+    }
+
+    static class ReadNode extends Node {
+        private final Identifier identifier;
+
+        ReadNode(Identifier identifier) {
+            this.identifier = identifier;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            return frame.lookupVariable(identifier);
+        }
+    }
+
+    static class AssignNode extends Node {
+        private final Identifier target;
+        private final Node value;
+
+        AssignNode(Identifier target, Node value) {
+            this.target = target;
+            this.value = value;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            return frame.assignVariable(target, value.execute(frame));
+        }
+    }
+
+    // {a, b} = value and [a, b] = value
+    static class DestructureNode extends Node {
+        private final RuntimeValueType kind;
+        private final Identifier[] targets;
+        private final Node value;
+        private final Expr valueAst;
+
+        DestructureNode(RuntimeValueType kind, Identifier[] targets, Node value, Expr valueAst) {
+            this.kind = kind;
+            this.targets = targets;
+            this.value = value;
+            this.valueAst = valueAst;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            var rhs = value.execute(frame);
+            var contents = matchContents(kind, rhs, valueAst, targets.length);
+            for(int i = 0; i < targets.length; i++) {
+                frame.assignVariable(targets[i], contents.get(i));
+            }
+            return rhs;
+        }
+    }
+
+    // {1, :ok} = value, compares the kinds of the elements
+    static class PatternNode extends Node {
+        private final RuntimeValueType kind;
+        private final Node[] patterns;
+        private final Node value;
+        private final Expr valueAst;
+
+        PatternNode(RuntimeValueType kind, Node[] patterns, Node value, Expr valueAst) {
+            this.kind = kind;
+            this.patterns = patterns;
+            this.value = value;
+            this.valueAst = valueAst;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            var rhs = value.execute(frame);
+            var contents = matchContents(kind, rhs, valueAst, patterns.length);
+            for(int i = 0; i < patterns.length; i++) {
+                if(patterns[i].execute(frame).getKind() != contents.get(i).getKind()) {
+                    throw new DexError("Match error. No match for the right hand value " + rhs);
+                }
+            }
+            return rhs;
+        }
+    }
+
+    private static List<RuntimeValue> matchContents(RuntimeValueType kind, RuntimeValue rhs, Expr valueAst, int size) {
+        if(rhs.getKind() != kind) {
+            throw new DexError("Match error. No match for the right hand value " + valueAst);
+        }
+        var contents = kind == RuntimeValueType.Tuple ? ((RTupleValue) rhs).contents : ((RListValue) rhs).contents;
+        if(contents.size() != size) {
+            throw new DexError("Match error. No match for the right hand value " + contents);
+        }
+        return contents;
+    }
+
+    static class BinaryNode extends Node {
+        private final Operator op;
+        private final Node left;
+        private final Node right;
+
+        BinaryNode(Operator op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            var lhs = left.execute(frame);
+            var rhs = right.execute(frame);
+            return Interpreter.evaluateBinaryOperation(op, lhs, rhs);
+        }
+    }
+
+    static class CallNode extends Node {
+        private final Node caller;
+        private final Node[] args;
+
+        CallNode(Node caller, Node[] args) {
+            this.caller = caller;
+            this.args = args;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            ArrayList<RuntimeValue> values = new ArrayList<>(args.length);
+            for(Node arg: args) {
+                values.add(arg.execute(frame));
+            }
+            return invoke(caller.execute(frame), values, frame);
+        }
+    }
+
+    // Call in tail position, evaluates the callee and arguments and leaves the call to invoke
+    static class TailCallNode extends Node {
+        private final Node caller;
+        private final Node[] args;
+        private final boolean reusesFrame;
+
+        TailCallNode(Node caller, Node[] args, boolean reusesFrame) {
+            this.caller = caller;
+            this.args = args;
+            this.reusesFrame = reusesFrame;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            ArrayList<RuntimeValue> values = new ArrayList<>(args.length);
+            for(Node arg: args) {
+                values.add(arg.execute(frame));
+            }
+            return new RTailCall(caller.execute(frame), values, reusesFrame);
+        }
+    }
+
+    static class MemberNode extends Node {
+        private final Node object;
+        private final String property;
+
+        MemberNode(Node object, String property) {
+            this.object = object;
+            this.property = property;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            var mod = object.execute(frame);
+            if(mod.getKind() != RuntimeValueType.Module) {
+                throw new RuntimeException("Error: LHS of a member expression should be a module");
+            }
+            var fn = ((RModule) mod).functions.get(property);
+            if(fn == null) {
+                throw new RuntimeException("InvalidIndexGiven: at function Tuple.at/2");
+            }
+            return fn;
+        }
+    }
+
+    static class TupleNode extends Node {
+        private final Node[] contents;
+
+        TupleNode(Node[] contents) {
+            this.contents = contents;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            RTupleValue newTuple = new RTupleValue();
+            for(Node content: contents) {
+                newTuple.contents.add(content.execute(frame));
+            }
+            return newTuple;
+        }
+    }
+
+    static class ListNode extends Node {
+        private final Node[] contents;
+
+        ListNode(Node[] contents) {
+            this.contents = contents;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            var newList = new PersistentVector.Builder();
+            for(Node content: contents) {
+                newList.add(content.execute(frame));
+            }
+            return new RListValue(newList.build());
+        }
+    }
+
+    static class MapNode extends Node {
+        private final Node[] keys;
+        private final Node[] values;
+
+        MapNode(Node[] keys, Node[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            var newMap = PersistentMap.EMPTY;
+            for(int i = 0; i < keys.length; i++) {
+                var key = keys[i].execute(frame);
+                newMap = newMap.with(key, values[i].execute(frame));
+            }
+            return new RMapStructure(newMap);
+        }
+    }
+
+    static class ClauseNode {
+        private final Node condition;
+        private final Node[] block;
+        private final int frameSize;
+
+        ClauseNode(Node condition, Node[] block, int frameSize) {
+            this.condition = condition;
+            this.block = block;
+            this.frameSize = frameSize;
+        }
+    }
+
+    // Follows Interpreter.evaluateIfStatement: the first clause settles the statement,
+    // a false condition ends it without looking at the other clauses
+    static class IfNode extends Node {
+        private final ClauseNode[] clauses;
+
+        IfNode(ClauseNode[] clauses) {
+            this.clauses = clauses;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            var clause = clauses[0];
+            if(clause.condition != null) {
+                var condition = clause.condition.execute(frame);
+                if(condition.getKind() == RuntimeValueType.Boolean && !((RBooleanValue) condition).value) {
+                    return RBooleanValue.TRUE;
+                }
+            }
+            var res = executeBlock(clause.block, new Environment(frame, clause.frameSize));
+            if(res != null) {
+                return res;
+            }
+            return RBooleanValue.TRUE;
+        }
+    }
+
+    static class WhileNode extends Node {
+        private final Node condition;
+        private final Node[] body;
+
+        WhileNode(Node condition, Node[] body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        private boolean test(Environment frame) {
+            var res = condition.execute(frame);
+            if(res.getKind() != RuntimeValueType.Boolean) {
+                throw new DexError("Condition in while should be a boolean");
+            }
+            return ((RBooleanValue) res).value;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            while(test(frame)) {
+                var res = executeBlock(body, frame);
+                if(res == null || res.getKind() == RuntimeValueType.Continue) continue;
+                if(res.getKind() == RuntimeValueType.Break) break;
+                return res;
+            }
+            return RNullValue.NULL;
+        }
+    }
+
+    static class FunctionNode extends Node {
+        private final FunctionDeclaration fd;
+        private final Node[] body;
+
+        FunctionNode(FunctionDeclaration fd, Node[] body) {
+            this.fd = fd;
+            this.body = body;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            return frame.assignVariable(0, fd.slot, fd.functionName, new CompiledFunction(fd, body, frame));
+        }
+    }
+
+    static class AnonymousFnNode extends Node {
+        private final AnonymousFn fn;
+        private final Node returnExpr;
+
+        AnonymousFnNode(AnonymousFn fn, Node returnExpr) {
+            this.fn = fn;
+            this.returnExpr = returnExpr;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            return new CompiledAnonymousFn(fn, returnExpr, frame);
+        }
+    }
+
+    static class ReturnNode extends Node {
+        private final Node value;
+
+        ReturnNode(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            return new RReturn(value.execute(frame));
+        }
+    }
+
+    static class TopLevelReturnNode extends Node {
+        private final Node value;
+
+        TopLevelReturnNode(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        RuntimeValue execute(Environment frame) {
+            var res = value.execute(frame);
+            frame.io().err.println("InvalidReturn: Top level Return Statements are not allowed");
+            return res;
+        }
+    }
+
+    static class BreakNode extends Node {
+        @Override
+        RuntimeValue execute(Environment frame) {
+            return RBreak.BREAK;
+        }
+    }
+
+    static class ContinueNode extends Node {
+        @Override
+        RuntimeValue execute(Environment frame) {
+            return RContinue.CONTINUE;
+        }
+    }
+}
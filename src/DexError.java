@@ -0,0 +1,11 @@
+// Error raised while running a script, such as invalid arguments, a failed match or an invalid operation.
+// It unwinds the whole run instead of exiting the JVM: Main prints the message and stops,
+// code embedding an Interpreter instance gets it thrown from run and the instance stays usable
+public class DexError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public DexError(String message) {
+        // Scripts see only the message, skip filling in the Java stack trace
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,225 @@
+import javax.script.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// javax.script engine for embedding. compile parses a script once, resolves it against a global frame layout of
+// its own on top of the builtins of the engine, and prepares it for the execution Engine given at construction.
+// Every evaluation runs on a fresh layer of that layout with the bindings of the context assigned on top, so
+// evaluations don't see each other's variables and can run on several threads at once. Compiled scripts are kept
+// in an LRU cache keyed by the source, evaluating the same source again skips parsing entirely. An evicted script
+// takes its layout with it, the builtins never grow
+public class DexScriptEngine extends AbstractScriptEngine implements Compilable {
+
+    static final int CACHE_SIZE = Integer.getInteger("dex.scriptCacheSize", 256);
+
+    private final ScriptEngineFactory factory;
+    private final Engine executionEngine;
+
+    // Builtins and modules. Never changed after construction, scripts only read them through their layouts
+    private final Environment globals = Environment.createGlobalEnvironment();
+
+    private final Map<String, DexCompiledScript> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DexCompiledScript> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public DexScriptEngine() {
+        this(Engine.TREE);
+    }
+
+    public DexScriptEngine(Engine executionEngine) {
+        this(new DexScriptEngineFactory(), executionEngine);
+    }
+
+    DexScriptEngine(ScriptEngineFactory factory, Engine executionEngine) {
+        this.factory = factory;
+        this.executionEngine = executionEngine;
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        synchronized (cache) {
+            var compiled = cache.get(script);
+            if(compiled != null) return compiled;
+        }
+        PreparedProgram program;
+        var layout = globals.layout();
+        try {
+            var ast = new Parser().produceAst(script);
+            new Resolver(layout).resolveProgram(ast);
+            program = executionEngine.prepare(ast);
+        }
+        catch (DexError e) {
+            throw new ScriptException(e.getMessage());
+        }
+        catch (RuntimeException e) {
+            throw new ScriptException(e);
+        }
+        var compiled = new DexCompiledScript(this, program, layout);
+        synchronized (cache) {
+            cache.put(script, compiled);
+        }
+        return compiled;
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        return compile(readAll(script));
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return eval(readAll(reader), context);
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    // Global scope first so engine scope bindings of the same name win. print, input and the error
+    // reports of the script use the writer, reader and error writer of the context
+    Environment createScope(Environment layout, ScriptContext context) {
+        var scope = layout.layer();
+        scope.setIO(new ScriptIO(printWriter(context.getWriter()), printWriter(context.getErrorWriter()),
+                context.getReader() instanceof BufferedReader reader ? reader : new BufferedReader(context.getReader())));
+        for(int bindingScope: new int[]{ ScriptContext.GLOBAL_SCOPE, ScriptContext.ENGINE_SCOPE }) {
+            var bindings = context.getBindings(bindingScope);
+            if(bindings == null) continue;
+            // Only the names the script uses, however many entries the bindings have collected
+            for(var name: layout.names()) {
+                if(bindings.containsKey(name)) scope.declareVariable(name, toRuntimeValue(bindings.get(name)));
+            }
+        }
+        return scope;
+    }
+
+    // Variables the script declared or changed go back to the engine scope
+    void updateBindings(Environment scope, ScriptContext context) {
+        var bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        if(bindings == null) return;
+        scope.forEachVariable((name, value) -> {
+            if(!globals.containsVariable(name) || globals.lookupVariable(name) != value) {
+                bindings.put(name, toJava(value));
+            }
+        });
+    }
+
+    private static PrintWriter printWriter(Writer writer) {
+        return writer instanceof PrintWriter printWriter ? printWriter : new PrintWriter(writer, true);
+    }
+
+    static RuntimeValue toRuntimeValue(Object value) {
+        if(value == null) return RNullValue.NULL;
+        if(value instanceof RuntimeValue runtimeValue) return runtimeValue;
+        if(value instanceof Number number) return RNumberValue.of(number.doubleValue());
+        if(value instanceof Boolean bool) return RBooleanValue.of(bool);
+        if(value instanceof CharSequence || value instanceof Character) return new RStringValue(value.toString());
+        if(value instanceof List<?> list) {
+            var builder = new PersistentVector.Builder();
+            for(var element: list) builder.add(toRuntimeValue(element));
+            return new RListValue(builder.build());
+        }
+        if(value instanceof Map<?, ?> map) {
+            var contents = PersistentMap.EMPTY;
+            for(var entry: map.entrySet()) {
+                contents = contents.with(toRuntimeValue(entry.getKey()), toRuntimeValue(entry.getValue()));
+            }
+            return new RMapStructure(contents);
+        }
+        throw new IllegalArgumentException("Cannot pass a " + value.getClass().getName() + " to a script");
+    }
+
+    // Plain Java values where there is one, anything else is handed out as the RuntimeValue
+    static Object toJava(RuntimeValue value) {
+        return switch (value.getKind()) {
+            case Null -> null;
+            case Boolean -> ((RBooleanValue) value).value;
+            case Number -> ((RNumberValue) value).number;
+            case String -> value.toRawString();
+            case List -> {
+                var list = new ArrayList<>();
+                for(var element: ((RListValue) value).contents) list.add(toJava(element));
+                yield list;
+            }
+            case Map -> {
+                var map = new LinkedHashMap<>();
+                ((RMapStructure) value).map.forEach((k, v) -> map.put(toJava(k), toJava(v)));
+                yield map;
+            }
+            default -> value;
+        };
+    }
+
+    private static String readAll(Reader reader) throws ScriptException {
+        var source = new StringBuilder();
+        var buffer = new char[8192];
+        try {
+            int read;
+            while((read = reader.read(buffer)) != -1) {
+                source.append(buffer, 0, read);
+            }
+        }
+        catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return source.toString();
+    }
+}
+
+class DexCompiledScript extends CompiledScript {
+    private final DexScriptEngine engine;
+    private final PreparedProgram program;
+    // Global slots the script was resolved against, every evaluation runs on a layer of it
+    private final Environment layout;
+
+    DexCompiledScript(DexScriptEngine engine, PreparedProgram program, Environment layout) {
+        this.engine = engine;
+        this.program = program;
+        this.layout = layout;
+    }
+
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+        Environment scope = null;
+        try {
+            scope = engine.createScope(layout, context);
+            var result = program.execute(scope);
+            engine.updateBindings(scope, context);
+            return DexScriptEngine.toJava(result);
+        }
+        catch (DexError e) {
+            throw new ScriptException(e.getMessage());
+        }
+        // Anything else the script manages to raise still reaches the caller as a ScriptException
+        catch (RuntimeException e) {
+            throw new ScriptException(e);
+        }
+        finally {
+            if(scope != null) {
+                scope.io().out.flush();
+                scope.io().err.flush();
+            }
+        }
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+}
@@ -0,0 +1,77 @@
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import java.util.List;
+
+// Registered in META-INF/services, so ScriptEngineManager finds the engine by the names, extensions and mime types below
+public class DexScriptEngineFactory implements ScriptEngineFactory {
+
+    @Override
+    public String getEngineName() {
+        return "DarkElixir";
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return Main.VERSION;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return List.of("dx");
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return List.of("application/x-darkelixir");
+    }
+
+    @Override
+    public List<String> getNames() {
+        return List.of("darkelixir", "dex", "dx");
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "DarkElixir";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return Main.VERSION;
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        return switch (key) {
+            case ScriptEngine.ENGINE -> getEngineName();
+            case ScriptEngine.ENGINE_VERSION -> getEngineVersion();
+            case ScriptEngine.LANGUAGE -> getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION -> getLanguageVersion();
+            case ScriptEngine.NAME -> getNames().get(0);
+            // Evaluations run on separate layers of the globals, but share the bindings of the engine
+            case "THREADING" -> "MULTITHREADED";
+            default -> null;
+        };
+    }
+
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        return obj + "." + m + "(" + String.join(", ", args) + ")";
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "print(\"" + toDisplay + "\")";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        return String.join("\n", statements);
+    }
+
+    // ScriptEngineManager has no way to pass an Engine, engines it creates follow -Ddex.engine
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new DexScriptEngine(this, Engine.fromProperty());
+    }
+}
@@ -0,0 +1,37 @@
+// Program compiled for an engine, ready to run against a global Environment
+@FunctionalInterface
+interface PreparedProgram {
+    RuntimeValue execute(Environment env);
+}
+
+// Ways to run a resolved Program. TREE walks the AST with the Interpreter, CLOSURE runs the ClosureCompiler output.
+// Each Interpreter and DexScriptEngine takes its own, fromProperty is only the default of the command line
+public enum Engine {
+    TREE,
+    CLOSURE;
+
+    // -Ddex.engine=tree|closure, tree when unset
+    public static Engine fromProperty() {
+        var name = System.getProperty("dex.engine", "tree");
+        return switch (name) {
+            case "tree" -> TREE;
+            case "closure" -> CLOSURE;
+            default -> throw new IllegalArgumentException("Unknown engine " + name);
+        };
+    }
+
+    RuntimeValue execute(Program program, Environment env) {
+        return switch (this) {
+            case TREE -> Interpreter.evaluateProgram(program, env);
+            case CLOSURE -> ClosureCompiler.run(program, env);
+        };
+    }
+
+    // Compiles a resolved program once, so it can be executed many times without compiling again
+    PreparedProgram prepare(Program program) {
+        return switch (this) {
+            case TREE -> env -> Interpreter.evaluateProgram(program, env);
+            case CLOSURE -> ClosureCompiler.compileProgram(program)::execute;
+        };
+    }
+}
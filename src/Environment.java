@@ -1,42 +1,94 @@
+import java.io.*;
 import java.time.Instant;
 import java.util.*;
+import java.util.function.BiConsumer;
 
+// Streams a script talks to. The command line uses the standard ones, an embedding can give its own
+class ScriptIO {
+    public final PrintWriter out;
+    public final PrintWriter err;
+    public final BufferedReader in;
+
+    static final ScriptIO STANDARD = new ScriptIO(new PrintWriter(System.out, true), new PrintWriter(System.err, true),
+            new BufferedReader(new InputStreamReader(System.in)));
+
+    public ScriptIO(PrintWriter out, PrintWriter err, BufferedReader in) {
+        this.out = out;
+        this.err = err;
+        this.in = in;
+    }
+}
 
 public class Environment {
     private Environment parent;
-    private HashMap<String, RuntimeValue> variables;
 
-    private Set<String> constants;
+    // Variables live in slots assigned by the Resolver. Local frames have a fixed size,
+    // the global frame grows as new names are declared
+    private RuntimeValue[] values;
+
+    // Only the global frame keeps names, so that native modules and the resolver can address it
+    private HashMap<String, Integer> slots;
+    private boolean[] constants;
+    // Set on a layer until it declares a name of its own, the names are those of the frame it was made from
+    private boolean sharedSlots;
+
+    // Kept by the global frame too, natives reach it from whatever scope they are called in
+    private ScriptIO io;
 
     public Environment() {
         this.parent = null;
-        this.variables = new HashMap<>();
-        this.constants = new TreeSet<>();
+        this.values = new RuntimeValue[64];
+        this.slots = new HashMap<>();
+        this.constants = new boolean[64];
+        this.io = ScriptIO.STANDARD;
     }
 
-    public Environment(Environment parent) {
+    public Environment(Environment parent, int size) {
         this.parent = parent;
-        this.variables = new HashMap<>();
-        this.constants = new TreeSet<>();
+        this.values = new RuntimeValue[size];
     }
 
-    public Environment getParent() {
-        return parent;
+    // Empty global frame for one script on top of this global frame, which it never changes. The parent
+    // pointer is only used by name: a name the script uses gets a slot here on first use, holding the value
+    // and constness this frame gives it. So the frame grows with the names of one script, nothing is copied up front
+    public Environment layout() {
+        var env = new Environment();
+        env.parent = this.globalFrame();
+        env.io = env.parent.io;
+        return env;
     }
 
-    public HashMap<String, RuntimeValue> getVariables() {
-        return variables;
+    // Fresh global frame starting from the values of this one. Slots stay the same, so a program resolved
+    // against this frame runs against the copy, and nothing it assigns reaches this frame. Only the values
+    // and constants are copied, the names are shared until the copy declares one of its own
+    public Environment layer() {
+        var global = this.globalFrame();
+        var env = new Environment(global.parent, 0);
+        env.values = Arrays.copyOf(global.values, global.values.length);
+        env.constants = Arrays.copyOf(global.constants, global.constants.length);
+        env.slots = global.slots;
+        env.sharedSlots = true;
+        env.io = global.io;
+        return env;
+    }
+
+    public ScriptIO io() {
+        return this.globalFrame().io;
     }
 
-    public Set<String> getConstants() {
-        return constants;
+    public void setIO(ScriptIO io) {
+        this.globalFrame().io = io;
+    }
+
+    public Environment getParent() {
+        return parent;
     }
 
     public static Environment createGlobalEnvironment() {
         Environment env = new Environment();
-        env.declareVariable("null", new RNullValue(), true);
-        env.declareVariable("true", new RBooleanValue(true), true);
-        env.declareVariable("false", new RBooleanValue(false), true);
+        env.declareVariable("null", RNullValue.NULL, true);
+        env.declareVariable("true", RBooleanValue.TRUE, true);
+        env.declareVariable("false", RBooleanValue.FALSE, true);
 
         env.declareVariable("print", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
             StringBuilder string = new StringBuilder();
@@ -47,8 +99,8 @@ public class Environment {
                 else
                     string.append(arg.toRawString()).append(" ");
             }
-            System.out.println(string.toString().trim());
-            return new RNullValue();
+            scope.io().out.println(string.toString().trim());
+            return RNullValue.NULL;
         }), true);
 
         env.declareVariable("input", RNativeFunction.MAKE_NATIVE_FN(((args, env1) -> {
@@ -56,20 +108,62 @@ public class Environment {
             Modules.expectArgs("input", 1, args.size(), argFormat);
             Modules.expect(args.get(0).getKind(), RuntimeValueType.String, argFormat);
 
-            Scanner sc = new Scanner(System.in);
+            var io = env1.io();
             var prompt = (RStringValue) args.get(0);
-            System.out.println(prompt.toRawString());
-            var res = sc.nextLine();
+            io.out.println(prompt.toRawString());
+            String res;
+            try {
+                res = io.in.readLine();
+            }
+            catch (IOException e) {
+                throw new DexError("Error reading input: " + e.getMessage());
+            }
+            if(res == null) {
+                throw new DexError("Error reading input: end of input reached");
+            }
 
             return new RStringValue(res);
         })), true);
 
         env.declareVariable("date", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
-            System.out.println(Date.from(Instant.now()));
-            return new RNullValue();
+            scope.io().out.println(Date.from(Instant.now()));
+            return RNullValue.NULL;
         }), true);
 
 
+        // Processes
+        env.declareVariable("spawn", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
+            if(args.isEmpty()) {
+                throw new DexError("Invalid Arguments: spawn function accepts a function followed by its arguments");
+            }
+            Modules.expectFunction(args.get(0), "Invalid Arguments: The first argument of spawn should be a function");
+            return Processes.spawn(args.get(0), new ArrayList<>(args.subList(1, args.size())), scope);
+        }), true);
+
+        env.declareVariable("send", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
+            if(args.size() != 2 || args.get(0).getKind() != RuntimeValueType.Pid) {
+                throw new DexError("Invalid Arguments: send/2 function accepts a pid and a message");
+            }
+            Processes.send((RPidValue) args.get(0), args.get(1));
+            return args.get(1);
+        }), true);
+
+        // receive() waits for the next message, receive(timeout) gives null after timeout milliseconds
+        env.declareVariable("receive", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
+            if(args.size() > 1 || (args.size() == 1 && args.get(0).getKind() != RuntimeValueType.Number)) {
+                throw new DexError("Invalid Arguments: receive function accepts only an optional timeout in milliseconds");
+            }
+            var message = Processes.receive(args.isEmpty() ? -1 : (long) ((RNumberValue) args.get(0)).number);
+            return message == null ? RNullValue.NULL : message;
+        }), true);
+
+        env.declareVariable("self", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
+            if(!args.isEmpty()) {
+                throw new DexError("Invalid Arguments: self/0 function accepts no arguments");
+            }
+            return Processes.self();
+        }), true);
+
         // Modules baby
         Modules.declareAllModules(env);
 
@@ -77,86 +171,159 @@ public class Environment {
         // is a function
         env.declareVariable("is_boolean", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
             if(args.size() != 1) {
-                System.err.println("Invalid Arguments: is_boolean/1 function accepts only one argument");
-                System.exit(0);
+                throw new DexError("Invalid Arguments: is_boolean/1 function accepts only one argument");
             }
-            return new RBooleanValue(args.get(0).getKind() == RuntimeValueType.Boolean);
+            return RBooleanValue.of(args.get(0).getKind() == RuntimeValueType.Boolean);
         }));
 
         env.declareVariable("is_atom", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
             if(args.size() != 1) {
-                System.err.println("Invalid Arguments: is_atom/1 function accepts only one argument");
-                System.exit(0);
+                throw new DexError("Invalid Arguments: is_atom/1 function accepts only one argument");
             }
-            return new RBooleanValue(args.get(0).getKind() == RuntimeValueType.Atom);
+            return RBooleanValue.of(args.get(0).getKind() == RuntimeValueType.Atom);
         }));
 
         env.declareVariable("is_number", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
             if(args.size() != 1) {
-                System.err.println("Invalid Arguments: is_number/1 function accepts only one argument");
-                System.exit(0);
+                throw new DexError("Invalid Arguments: is_number/1 function accepts only one argument");
             }
-            return new RBooleanValue(args.get(0).getKind() == RuntimeValueType.Number);
+            return RBooleanValue.of(args.get(0).getKind() == RuntimeValueType.Number);
         }));
 
         env.declareVariable("is_tuple", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
             if(args.size() != 1) {
-                System.err.println("Invalid Arguments: is_tuple/1 function accepts only one argument");
-                System.exit(0);
+                throw new DexError("Invalid Arguments: is_tuple/1 function accepts only one argument");
             }
-            return new RBooleanValue(args.get(0).getKind() == RuntimeValueType.Tuple);
+            return RBooleanValue.of(args.get(0).getKind() == RuntimeValueType.Tuple);
         }));
 
         env.declareVariable("is_list", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
             if(args.size() != 1) {
-                System.err.println("Invalid Arguments: is_list/1 function accepts only one argument");
-                System.exit(0);
+                throw new DexError("Invalid Arguments: is_list/1 function accepts only one argument");
             }
-            return new RBooleanValue(args.get(0).getKind() == RuntimeValueType.List);
+            return RBooleanValue.of(args.get(0).getKind() == RuntimeValueType.List);
         }));
 
 
         // len function
         env.declareVariable("len", RNativeFunction.MAKE_NATIVE_FN((args, scope) -> {
             if(args.size() != 1) {
-                System.err.println("Invalid Arguments: len/1 function accepts only one argument");
-                System.exit(0);
+                throw new DexError("Invalid Arguments: len/1 function accepts only one argument");
             }
             RuntimeValue arg = args.get(0);
             switch(arg.getKind()) {
                 case Tuple -> {
-                    return new RNumberValue((double) ((RTupleValue) arg).contents.size());
+                    return RNumberValue.of((double) ((RTupleValue) arg).contents.size());
                 }
                 case List -> {
-                    return new RNumberValue((double) ((RListValue) arg).contents.size());
+                    return RNumberValue.of((double) ((RListValue) arg).contents.size());
                 }
                 case String -> {
-                    return new RNumberValue((double) ((RStringValue) arg).value.length() - 2); // Remove the double quotes
+                    return RNumberValue.of((double) ((RStringValue) arg).toRawString().length());
                 }
 
             }
-            System.err.println("Invalid argument for len function, Given " + arg.getKind());
-            System.exit(0);
-            return new RNullValue();
+            throw new DexError("Invalid argument for len function, Given " + arg.getKind());
         }));
 
         return env;
     }
 
-    public boolean containsVariable(String variableName) {
-        var env = safeResolveEnvironment(variableName);
-        return env != null;
+    // Slot access used by the interpreter. Depth is the number of frames to walk up the chain
+
+    public RuntimeValue lookupVariable(Identifier identifier) {
+        return this.lookupVariable(identifier.depth, identifier.slot, identifier.symbol);
+    }
+
+    public RuntimeValue lookupVariable(int depth, int slot, String variableName) {
+        var value = this.ancestor(depth).values[slot];
+        if(value == null) {
+            throw new DexError("Cannot resolve variable " + variableName + " as it doesn't exist.");
+        }
+        return value;
+    }
+
+    public RuntimeValue assignVariable(Identifier identifier, RuntimeValue value) {
+        return this.assignVariable(identifier.depth, identifier.slot, identifier.symbol, value);
+    }
+
+    public RuntimeValue assignVariable(int depth, int slot, String variableName, RuntimeValue value) {
+        var env = this.ancestor(depth);
+        if(env.constants != null && env.constants[slot]) {
+            throw new DexError("Cannot reassign to variable " + variableName + " as it was declared as a constant");
+        }
+        env.values[slot] = value;
+        return value;
+    }
+
+    // Empties a local frame so that a tail call can use it as a fresh one
+    public void clear() {
+        Arrays.fill(this.values, null);
+    }
+
+    // Binds a parameter in a freshly created frame
+    public void declareVariable(Identifier parameter, RuntimeValue value) {
+        this.values[parameter.slot] = value;
     }
 
-    // Same as resolve. But doesn't throw an error
-    public Environment safeResolveEnvironment(String variableName) {
-        if(this.variables.containsKey(variableName)) {
-            return this;
+    private Environment ancestor(int depth) {
+        var env = this;
+        for(int i = 0; i < depth; i++) {
+            env = env.parent;
         }
-        if(this.parent == null) {
-            return null;
+        return env;
+    }
+
+    // Name based access. Only the global frame keeps names, so these resolve against it
+
+    private Environment globalFrame() {
+        var env = this;
+        while(env.slots == null) {
+            env = env.parent;
         }
-        return this.parent.safeResolveEnvironment(variableName);
+        return env;
+    }
+
+    // Returns the global slot of the name or -1 when it has never been seen
+    public int findSlot(String variableName) {
+        return this.globalFrame().slots.getOrDefault(variableName, -1);
+    }
+
+    // Returns the global slot of the name, reserving a new one if needed
+    public int resolveSlot(String variableName) {
+        var env = this.globalFrame();
+        var slot = env.slots.get(variableName);
+        if(slot != null) {
+            return slot;
+        }
+        if(env.sharedSlots) {
+            env.slots = new HashMap<>(env.slots);
+            env.sharedSlots = false;
+        }
+        slot = env.slots.size();
+        if(slot == env.values.length) {
+            env.values = Arrays.copyOf(env.values, slot * 2);
+            env.constants = Arrays.copyOf(env.constants, slot * 2);
+        }
+        env.slots.put(variableName, slot);
+        // A layout takes over a name of the frame below with its value
+        if(env.parent != null && env.parent.ownsVariable(variableName)) {
+            int inherited = env.parent.findSlot(variableName);
+            env.values[slot] = env.parent.values[inherited];
+            env.constants[slot] = env.parent.constants[inherited];
+        }
+        return slot;
+    }
+
+    private boolean ownsVariable(String variableName) {
+        int slot = this.findSlot(variableName);
+        return slot != -1 && this.globalFrame().values[slot] != null;
+    }
+
+    // Names of the frame below a layout count too, they are only copied up once the script uses them
+    public boolean containsVariable(String variableName) {
+        var env = this.globalFrame();
+        return env.ownsVariable(variableName) || (env.parent != null && env.parent.containsVariable(variableName));
     }
 
     public RuntimeValue declareVariable(String variableName, RuntimeValue value) {
@@ -164,42 +331,42 @@ public class Environment {
     }
 
     public RuntimeValue declareVariable(String variableName, RuntimeValue value, Boolean constant) {
-        if(this.variables.containsKey(variableName)) {
-            this.assignVariable(variableName, value);
-            return value;
-//            System.err.println("Cannot declare a variable that already exists. Variable: " + variableName);
-//            System.exit(0);
-        }
-        this.variables.put(variableName, value);
-        if(constant) this.constants.add(variableName);
+        var env = this.globalFrame();
+        int slot = env.resolveSlot(variableName);
+        env.assignVariable(0, slot, variableName, value);
+        if(constant) env.constants[slot] = true;
 
         return value;
     }
 
     public RuntimeValue assignVariable(String variableName, RuntimeValue value) {
-        var env = this.resolveEnvironment(variableName);
-        env.variables.put(variableName, value);
-        if(env.constants.contains(variableName)) {
-            System.err.println("Cannot reassign to variable " + variableName + " as it was declared as a constant");
-            System.exit(0);
+        if(!this.ownsVariable(variableName)) {
+            throw new DexError("Cannot resolve variable " + variableName + " as it doesn't exist.");
         }
-        return value;
+        return this.globalFrame().assignVariable(0, this.findSlot(variableName), variableName, value);
     }
 
-    public RuntimeValue lookupVariable(String variableName) {
+    // Names with a slot in the global frame, assigned or not
+    public Set<String> names() {
+        return Collections.unmodifiableSet(this.globalFrame().slots.keySet());
+    }
 
-        var env = this.resolveEnvironment(variableName);
-        return env.variables.get(variableName);
+    // Every declared global with its value, variables reserved by the resolver but never assigned are skipped
+    public void forEachVariable(BiConsumer<String, RuntimeValue> action) {
+        var env = this.globalFrame();
+        env.slots.forEach((name, slot) -> {
+            if(env.values[slot] != null) action.accept(name, env.values[slot]);
+        });
     }
 
-    public Environment resolveEnvironment(String variableName) {
-        if(this.variables.containsKey(variableName)) {
-            return this;
+    public RuntimeValue lookupVariable(String variableName) {
+        var env = this.globalFrame();
+        if(env.ownsVariable(variableName)) {
+            return env.values[env.findSlot(variableName)];
         }
-        if(this.parent == null) {
-            System.err.println("Cannot resolve variable " + variableName + " as it doesn't exist.");
-            System.exit(0);
+        if(env.parent != null) {
+            return env.parent.lookupVariable(variableName);
         }
-        return this.parent.resolveEnvironment(variableName);
+        throw new DexError("Cannot resolve variable " + variableName + " as it doesn't exist.");
     }
 }
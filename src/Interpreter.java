@@ -1,14 +1,46 @@
 import java.util.*;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
+@FunctionalInterface
+interface BinaryOperation {
+    RuntimeValue apply(RuntimeValue lhs, RuntimeValue rhs, Operator op);
+}
 
+// Return, break and continue travel back up as completion values (RReturn, RBreak, RContinue)
+// until the enclosing call or loop consumes them. The evaluation functions keep no state of their own,
+// everything a script changes lives in the Environment it runs in.
+// An Interpreter instance owns the global Environment of one script, separate instances share nothing
+// mutable and can run on separate threads at the same time. Errors are thrown as DexError
 public class Interpreter {
-    static Stack<RuntimeValue> CallStack = new Stack<>();
 
-    static Stack<RuntimeValue> returnStack = new Stack<>();
+    private final Environment globals;
+    private final Resolver resolver;
+    private final Engine engine;
+
+    // The tree walker, the reference engine
+    public Interpreter() {
+        this(Engine.TREE);
+    }
+
+    public Interpreter(Engine engine) {
+        this.globals = Environment.createGlobalEnvironment();
+        this.resolver = new Resolver(this.globals);
+        this.engine = engine;
+    }
 
-    static Boolean isReturnIssued = false;
+    // Runs the source with the globals left by the previous runs of this instance
+    public RuntimeValue run(String source) {
+        return run(new Parser().produceAst(source));
+    }
+
+    // Runs a program straight from the Parser or from the AstCache, it must not have been resolved before
+    public RuntimeValue run(Program program) {
+        resolver.resolveProgram(program);
+        return engine.execute(program, globals);
+    }
+
+    public Environment getGlobals() {
+        return globals;
+    }
 
     static Boolean equivalentBoolean(RuntimeValue val) {
         switch (val.getKind()) {
@@ -20,121 +52,106 @@ public class Interpreter {
         return true;
     }
     static RuntimeValue evaluateProgram(Program program, Environment env) {
-        RuntimeValue lastEvaluated = new RNullValue();
+        RuntimeValue lastEvaluated = RNullValue.NULL;
         for(Stmt stmt: program.body) {
             lastEvaluated = evaluate(stmt, env);
-            if(lastEvaluated.getKind() == RuntimeValueType.Break || lastEvaluated.getKind() == RuntimeValueType.Continue) {
-                System.err.println("Top level break/continue statements are not allowed");
-                System.exit(0);
+            switch (lastEvaluated.getKind()) {
+                case Break, Continue -> {
+                    throw new DexError("Top level break/continue statements are not allowed");
+                }
             }
         }
         return lastEvaluated;
     }
 
+    // Binary operations indexed by the kinds of both operands, built once
+    private static final BinaryOperation[][] BINARY_OPERATIONS = new BinaryOperation[RuntimeValueType.values().length][RuntimeValueType.values().length];
+
+    static {
+        registerBinaryOperation(RuntimeValueType.Number, RuntimeValueType.Number, (lhs, rhs, op) -> evaluateNumericBinaryExpr((RNumberValue) lhs, (RNumberValue) rhs, op));
+        registerBinaryOperation(RuntimeValueType.String, RuntimeValueType.String, (lhs, rhs, op) -> evaluateStringBinaryExpr((RStringValue) lhs, (RStringValue) rhs, op));
+        registerBinaryOperation(RuntimeValueType.Number, RuntimeValueType.String, (lhs, rhs, op) -> evaluateNumberStringOps((RNumberValue) lhs, (RStringValue) rhs, op));
+        registerBinaryOperation(RuntimeValueType.String, RuntimeValueType.Number, (lhs, rhs, op) -> evaluateNumberStringOps((RStringValue) lhs, (RNumberValue) rhs, op));
+        registerBinaryOperation(RuntimeValueType.Atom, RuntimeValueType.Atom, (lhs, rhs, op) -> evaluateAtomComparison((RAtomValue) lhs, (RAtomValue) rhs, op));
+    }
+
+    private static void registerBinaryOperation(RuntimeValueType lhs, RuntimeValueType rhs, BinaryOperation operation) {
+        BINARY_OPERATIONS[lhs.ordinal()][rhs.ordinal()] = operation;
+    }
+
     static RuntimeValue evaluateBinaryExpr(BinaryExpr binExp, Environment env) {
         var lhs = evaluate(binExp.left, env);
         var rhs = evaluate(binExp.right, env);
+        return evaluateBinaryOperation(binExp.op, lhs, rhs);
+    }
 
-        if(Objects.equals(binExp.op, "and") || Objects.equals(binExp.op, "or")) return evaluateLogicalExpr(lhs, rhs, binExp.op);
-
-        HashMap<String, Supplier<RuntimeValue>> functionMap = new HashMap<>();
-        functionMap.put("Number-Number", () -> evaluateNumericBinaryExpr(((RNumberValue) lhs), ((RNumberValue) rhs), binExp.op));
-        functionMap.put("String-String", () -> evaluateStringBinaryExpr((RStringValue) lhs, (RStringValue) rhs, binExp.op));
-        functionMap.put("Number-String", () -> evaluateNumberStringOps((RNumberValue) lhs, (RStringValue) rhs, binExp.op));
-        functionMap.put("String-Number", () -> evaluateNumberStringOps((RStringValue) lhs, (RNumberValue) rhs, binExp.op));
-        functionMap.put("Atom-Atom", () -> evaluateAtomComparison((RAtomValue) lhs, (RAtomValue) rhs, binExp.op));
+    static RuntimeValue evaluateBinaryOperation(Operator op, RuntimeValue lhs, RuntimeValue rhs) {
+        if(op == Operator.And || op == Operator.Or) return evaluateLogicalExpr(lhs, rhs, op);
 
-        String key = lhs.getKind().toString() + "-" + rhs.getKind().toString();
-        if (functionMap.containsKey(key)) return functionMap.get(key).get();
+        var operation = BINARY_OPERATIONS[lhs.getKind().ordinal()][rhs.getKind().ordinal()];
+        if(operation != null) return operation.apply(lhs, rhs, op);
 
-        return new RNullValue();
+        return RNullValue.NULL;
     }
 
-    static RuntimeValue evaluateNumberStringOps(RStringValue lhs, RNumberValue rhs, String op) {
-        RStringValue res = new RStringValue();
+    static RuntimeValue evaluateNumberStringOps(RStringValue lhs, RNumberValue rhs, Operator op) {
+        RStringValue res = null;
         switch (op) {
-            case "+" -> res.value = lhs.toRawString() + rhs.number;
+            case Add -> res = lhs.concat(String.valueOf(rhs.number));
             default -> {
-                System.err.println("Invalid Operation " + op + " on String and Number.");
-                System.exit(0);
+                throw new DexError("Invalid Operation " + op + " on String and Number.");
             }
         }
         return res;
     }
 
-    static RuntimeValue evaluateNumberStringOps(RNumberValue lhs, RStringValue rhs, String op) {
-        RStringValue res = new RStringValue();
+    static RuntimeValue evaluateNumberStringOps(RNumberValue lhs, RStringValue rhs, Operator op) {
+        RStringValue res = null;
         switch (op) {
-            case "+" -> res.value = lhs.number + rhs.toRawString();
+            case Add -> res = new RStringValue(lhs.number + rhs.toRawString());
             default -> {
-                System.err.println("Invalid Operation " + op + " on String and Number.");
-                System.exit(0);
+                throw new DexError("Invalid Operation " + op + " on String and Number.");
             }
         }
 
         return res;
     }
 
-    static RuntimeValue evaluateAtomComparison(RAtomValue lhs, RAtomValue rhs, String op) {
-        // Currently only supports  '=='
-        String leftAtomValue = lhs.value;
-        String rightAtomValue = rhs.value;
-        RBooleanValue result = new RBooleanValue(true);
-
-        switch(op) {
-            case "==" -> {
-                result.value = leftAtomValue.equals(rightAtomValue);
-            }
-            case ">=" -> {
-                result.value = leftAtomValue.compareTo(rightAtomValue) >= 0;
-            }
-            case ">" -> {
-                result.value = leftAtomValue.compareTo(rightAtomValue) > 0;
-            }
-            case "<=" -> {
-                result.value = leftAtomValue.compareTo(rightAtomValue) <= 0;
-            }
-            case "<" -> {
-                result.value = leftAtomValue.compareTo(rightAtomValue) < 0;
-            }
-            case "!=" -> {
-                result.value = leftAtomValue.compareTo(rightAtomValue) != 0;
-            }
-            default -> {
-                return new RNullValue();
-            }
-        }
-        return result;
+    static RuntimeValue evaluateAtomComparison(RAtomValue lhs, RAtomValue rhs, Operator op) {
+        // Atoms are interned, equality is identity. Ordering still follows the names
+        return switch(op) {
+            case Equals -> RBooleanValue.of(lhs == rhs);
+            case NotEqual -> RBooleanValue.of(lhs != rhs);
+            case GreaterThanOrEqual -> RBooleanValue.of(lhs.value.compareTo(rhs.value) >= 0);
+            case GreaterThan -> RBooleanValue.of(lhs.value.compareTo(rhs.value) > 0);
+            case LessThanOrEqual -> RBooleanValue.of(lhs.value.compareTo(rhs.value) <= 0);
+            case LessThan -> RBooleanValue.of(lhs.value.compareTo(rhs.value) < 0);
+            default -> RNullValue.NULL;
+        };
     }
-    static RuntimeValue evaluateNumericBinaryExpr(RNumberValue lhs, RNumberValue rhs, String op) {
-        RNumberValue result =  new RNumberValue();
-
-        switch (op) {
-            case "+" -> result.number = lhs.number + rhs.number;
-            case "-" -> result.number = lhs.number - rhs.number;
-            case "*" -> result.number = lhs.number * rhs.number;
-            case "/" -> result.number = lhs.number / rhs.number;
-            case "%" -> result.number = lhs.number % rhs.number;
-            case ">", "<", ">=", "<=", "==", "!=" -> {
-                return evaluateNumericRelationalExpr(lhs.number, rhs.number, op);
-            }
-            case "and", "or" -> {
-                return evaluateLogicalExpr(lhs, rhs, op);
-            }
-        }
-        return result;
+    static RuntimeValue evaluateNumericBinaryExpr(RNumberValue lhs, RNumberValue rhs, Operator op) {
+        return switch (op) {
+            case Add -> RNumberValue.of(lhs.number + rhs.number);
+            case Subtract -> RNumberValue.of(lhs.number - rhs.number);
+            case Multiply -> RNumberValue.of(lhs.number * rhs.number);
+            case Divide -> RNumberValue.of(lhs.number / rhs.number);
+            case Modulo -> RNumberValue.of(lhs.number % rhs.number);
+            case GreaterThan, LessThan, GreaterThanOrEqual, LessThanOrEqual, Equals, NotEqual -> evaluateNumericRelationalExpr(lhs.number, rhs.number, op);
+            case And, Or -> evaluateLogicalExpr(lhs, rhs, op);
+            default -> new RNumberValue();
+        };
     }
 
-    static RuntimeValue evaluateLogicalExpr(RuntimeValue lhs, RuntimeValue rhs, String op) {
+    static RuntimeValue evaluateLogicalExpr(RuntimeValue lhs, RuntimeValue rhs, Operator op) {
         RBooleanValue res = new RBooleanValue();
         var leftBool = equivalentBoolean(lhs);
         switch (op) {
-            case "and" -> {
+            case And -> {
                 if(leftBool)
                     return rhs;
                 return lhs;
             }
-            case "or" -> {
+            case Or -> {
                 if(leftBool)
                     return lhs;
                 return rhs;
@@ -145,28 +162,26 @@ public class Interpreter {
         }
         return res;
     }
-    static RuntimeValue evaluateNumericRelationalExpr(Double lhs, Double rhs, String op) {
-        RBooleanValue result = new RBooleanValue();
-        switch (op) {
-            case ">" -> result.value = lhs > rhs;
-            case "<" -> result.value = lhs < rhs;
-            case ">=" -> result.value = lhs >= rhs;
-            case "<=" -> result.value = lhs <= rhs;
-            case "==" -> result.value = Objects.equals(lhs, rhs);
-            case "!=" -> result.value = !Objects.equals(lhs, rhs);
-        }
-        return result;
+    static RuntimeValue evaluateNumericRelationalExpr(double lhs, double rhs, Operator op) {
+        return switch (op) {
+            case GreaterThan -> RBooleanValue.of(lhs > rhs);
+            case LessThan -> RBooleanValue.of(lhs < rhs);
+            case GreaterThanOrEqual -> RBooleanValue.of(lhs >= rhs);
+            case LessThanOrEqual -> RBooleanValue.of(lhs <= rhs);
+            case Equals -> RBooleanValue.of(Double.compare(lhs, rhs) == 0);
+            case NotEqual -> RBooleanValue.of(Double.compare(lhs, rhs) != 0);
+            default -> new RBooleanValue();
+        };
     }
 
-    static RStringValue evaluateStringBinaryExpr(RStringValue lhs, RStringValue rhs, String op) {
-        RStringValue res = new RStringValue();
+    static RStringValue evaluateStringBinaryExpr(RStringValue lhs, RStringValue rhs, Operator op) {
+        RStringValue res = null;
 
         // Will be extensible
         switch (op) {
-            case "+" -> res.value = lhs.value + rhs.value;
+            case Add -> res = lhs.concat(rhs.toRawString());
             default -> {
-                System.err.println("Invalid operator for strings. Given " + op);
-                System.exit(0);
+                throw new DexError("Invalid operator for strings. Given " + op);
             }
         }
         return res;
@@ -174,14 +189,13 @@ public class Interpreter {
 
     static RuntimeValue evaluateIdentifier(Identifier astNode, Environment env) {
         // Gives the value tha variable holds
-        return env.lookupVariable(astNode.symbol);
+        return env.lookupVariable(astNode);
     }
 
     static RuntimeValue evaluateMatchExpr(MatchExpr matchExpr, Environment env) {
 
         if(matchExpr.toAssigned.getKind() != AstNode.Identifier && matchExpr.toAssigned.getKind() != AstNode.Tuple && matchExpr.toAssigned.getKind() != AstNode.List) {
-            System.err.println("Invalid LHS of the Match expression " + matchExpr.toAssigned);
-            System.exit(0);
+            throw new DexError("Invalid LHS of the Match expression " + matchExpr.toAssigned);
         }
 
         // Implement tuple destructuring
@@ -198,11 +212,8 @@ public class Interpreter {
 //                    System.exit(0);
 //                }
 
-                // Assign the new value, if it is present in the current environment
-                if(env.containsVariable(asIdentifier.symbol))
-                    return env.assignVariable(asIdentifier.symbol, evaluate(matchExpr.value, env));
-
-                return env.declareVariable(asIdentifier.symbol, evaluate(matchExpr.value, env));
+                // The resolver already decided whether this declares a new variable or assigns an outer one
+                return env.assignVariable(asIdentifier, evaluate(matchExpr.value, env));
             }
             case Tuple -> {
 
@@ -211,16 +222,14 @@ public class Interpreter {
                 var rhsKind = evaluate(matchExpr.value, env);
 
                 if(rhsKind.getKind() != RuntimeValueType.Tuple) {
-                    System.err.println("Match error. No match for the right hand value " + matchExpr.value);
-                    System.exit(0);
+                    throw new DexError("Match error. No match for the right hand value " + matchExpr.value);
                 }
                 var rhs = (RTupleValue) rhsKind;
                 var lhsContents = ((Tuple) matchExpr.toAssigned).contents;
 
                 // Check whether both the tuples have the same size
                 if(rhs.contents.size() != lhsContents.size()) {
-                    System.err.println("Match error. No match for the right hand value " + rhs.contents);
-                    System.exit(0);
+                    throw new DexError("Match error. No match for the right hand value " + rhs.contents);
                 }
 
                 // Check whether the functionality is pattern matching or multiple assignment
@@ -229,15 +238,14 @@ public class Interpreter {
                     for(int i = 0; i < lhsContents.size(); i++) {
                         Identifier variableLHS = (Identifier) lhsContents.get(i);
                         RuntimeValue variableRHS = rhs.contents.get(i);
-                        env.declareVariable(variableLHS.symbol, variableRHS);
+                        env.assignVariable(variableLHS, variableRHS);
                     }
 
                 }
                 else {
                     for(int i = 0; i < lhsContents.size(); i++) {
                         if(evaluate(lhsContents.get(i), env).getKind() != rhs.contents.get(i).getKind()) {
-                            System.err.println("Match error. No match for the right hand value " + rhs);
-                            System.exit(0);
+                            throw new DexError("Match error. No match for the right hand value " + rhs);
                         }
                     }
                 }
@@ -248,16 +256,14 @@ public class Interpreter {
                 var rhsKind = evaluate(matchExpr.value, env);
 
                 if(rhsKind.getKind() != RuntimeValueType.List) {
-                    System.err.println("Match error. No match for the right hand value " + matchExpr.value);
-                    System.exit(0);
+                    throw new DexError("Match error. No match for the right hand value " + matchExpr.value);
                 }
                 var rhs = (RListValue) rhsKind;
                 var lhsContents = ((ListStructure) matchExpr.toAssigned).contents;
 
                 // Check whether both the tuples have the same size
                 if(rhs.contents.size() != lhsContents.size()) {
-                    System.err.println("Match error. No match for the right hand value " + rhs.contents);
-                    System.exit(0);
+                    throw new DexError("Match error. No match for the right hand value " + rhs.contents);
                 }
 
                 // Check whether the functionality is pattern matching or multiple assignment
@@ -266,15 +272,14 @@ public class Interpreter {
                     for(int i = 0; i < lhsContents.size(); i++) {
                         Identifier variableLHS = (Identifier) lhsContents.get(i);
                         RuntimeValue variableRHS = rhs.contents.get(i);
-                        env.declareVariable(variableLHS.symbol, variableRHS);
+                        env.assignVariable(variableLHS, variableRHS);
                     }
 
                 }
                 else {
                     for(int i = 0; i < lhsContents.size(); i++) {
                         if(evaluate(lhsContents.get(i), env).getKind() != rhs.contents.get(i).getKind()) {
-                            System.err.println("Match error. No match for the right hand value " + rhs);
-                            System.exit(0);
+                            throw new DexError("Match error. No match for the right hand value " + rhs);
                         }
                     }
                 }
@@ -284,71 +289,128 @@ public class Interpreter {
 
             }
         }
-        return new RNullValue();
+        return RNullValue.NULL;
     }
 
     static RuntimeValue evaluateReturnStatement(ReturnStatement rs, Environment env) {
-        var res = evaluate(rs.returnValue, env);
-        if(CallStack.empty()) {
-            System.err.println("InvalidReturn: Top level Return Statements are not allowed");
+        // Same as the other engines, the value is kept and the enclosing block carries on
+        if(rs.topLevel) {
+            var value = evaluate(rs.returnValue, env);
+            env.io().err.println("InvalidReturn: Top level Return Statements are not allowed");
+            return value;
         }
-        returnStack.push(res);
-        isReturnIssued = true;
-        return res;
+        if(rs.returnValue.getKind() == AstNode.CallExpr && ((CallExpr) rs.returnValue).isTailCall) {
+            return evaluateTailCall((CallExpr) rs.returnValue, env);
+        }
+        return new RReturn(evaluate(rs.returnValue, env));
     }
 
-    static  RuntimeValue evaluateCallExpr(CallExpr expr, Environment env) {
-        var args = expr.args.stream().map(arg -> evaluate(arg, env)).toList();
+    // Evaluates the callee and arguments of a call in tail position, callFunction makes the call
+    static RuntimeValue evaluateTailCall(CallExpr expr, Environment env) {
+        ArrayList<RuntimeValue> args = new ArrayList<>(expr.args.size());
+        for(var arg: expr.args) {
+            args.add(evaluate(arg, env));
+        }
         var fn = evaluate(expr.caller, env);
-        if(fn.getKind() == RuntimeValueType.NativeFunction) {
-            return ((RNativeFunction) fn).call.call(new ArrayList<>(args), env);
+        return new RTailCall(fn, args, expr.reusesFrame);
+    }
+
+    static  RuntimeValue evaluateCallExpr(CallExpr expr, Environment env) {
+        ArrayList<RuntimeValue> args = new ArrayList<>(expr.args.size());
+        for(var arg: expr.args) {
+            args.add(evaluate(arg, env));
         }
-        if(fn.getKind() == RuntimeValueType.FunctionValue) {
-            CallStack.push(fn);
-            var fnValue = (RFunctionValue) fn;
+        var fn = evaluate(expr.caller, env);
+        return callFunction(fn, args, env);
+    }
 
-            // Declare a new scope with current env as the parent
-            var scope = new Environment(fnValue.declarationEnv);
+    // Tail calls come back from the body as RTailCall and are made by the loop here,
+    // so a chain of them runs in constant stack space
+    static RuntimeValue callFunction(RuntimeValue fn, ArrayList<RuntimeValue> args, Environment env) {
+        try {
+            Environment scope = null;
+            boolean reuseFrame = false;
+            while(true) {
+                RuntimeValue result;
+                if(fn.getKind() == RuntimeValueType.NativeFunction) {
+                    return ((RNativeFunction) fn).call.call(args, env);
+                }
+                else if(fn.getKind() == RuntimeValueType.FunctionValue) {
+                    var fnValue = (RFunctionValue) fn;
+                    checkArity(fn, fnValue.parameters, args);
+                    var compiled = JitCompiler.call(fnValue, args);
+                    if(compiled != null) {
+                        return compiled;
+                    }
 
-            // Set the parameters as vars in the current scope
-            for(int i = 0; i < fnValue.parameters.size(); i++) {
-//                System.out.println(fnValue.parameters.get(i).toString() + " " + args.get(i));
-                scope.declareVariable(((Identifier)fnValue.parameters.get(i)).symbol, args.get(i), false);
-            }
-            RuntimeValue result = new RNullValue();
-            for(var stmt: fnValue.body) {
-                result = evaluate(stmt, scope);
-                if(result.getKind() == RuntimeValueType.Break || result.getKind() == RuntimeValueType.Continue) {
-                    System.err.println("Top level break/continue statements are not allowed");
-                    System.exit(0);
+                    // Declare a new scope with current env as the parent
+                    scope = enterFrame(scope, reuseFrame, fnValue.declarationEnv, fnValue.frameSize);
+
+                    // Set the parameters as vars in the current scope
+                    for(int i = 0; i < fnValue.parameters.size(); i++) {
+    //                System.out.println(fnValue.parameters.get(i).toString() + " " + args.get(i));
+                        scope.declareVariable((Identifier) fnValue.parameters.get(i), args.get(i));
+                    }
+                    result = runFunctionBody(fnValue.body, scope);
                 }
+                else if(fn.getKind() == RuntimeValueType.AnonymousFn) {
+                    var fnValue = (RAnonymousFn) fn;
+                    checkArity(fn, fnValue.parameters, args);
 
-                // If the executed statement is return
-                if(isReturnIssued && !returnStack.empty()) {
-                    CallStack.pop();
-                    return returnStack.pop();
+                    scope = enterFrame(scope, reuseFrame, fnValue.declarationEnv, fnValue.frameSize);
+                    for(int i = 0; i < fnValue.parameters.size(); i++) {
+    //                System.out.println(fnValue.parameters.get(i).toString() + " " + args.get(i));
+                        scope.declareVariable((Identifier) fnValue.parameters.get(i), args.get(i));
+                    }
+
+                    if(fnValue.returnExpr.getKind() == AstNode.CallExpr && ((CallExpr) fnValue.returnExpr).isTailCall) {
+                        result = evaluateTailCall((CallExpr) fnValue.returnExpr, scope);
+                    }
+                    else {
+                        result = evaluate(fnValue.returnExpr, scope);
+                    }
+                }
+                else {
+                    throw new DexError("Cannot call a value which is not a native function " + fn);
                 }
+
+                if(!(result instanceof RTailCall tailCall)) {
+                    return result;
+                }
+                // A function calling itself can take over its own frame when no closure holds on to it
+                reuseFrame = tailCall.reusesFrame && tailCall.fn == fn;
+                fn = tailCall.fn;
+                args = tailCall.args;
             }
-            CallStack.pop();
-            return new RNullValue();
         }
-        if(fn.getKind() == RuntimeValueType.AnonymousFn) {
-            CallStack.push(fn);
-            var fnValue = (RAnonymousFn) fn;
+        catch (StackOverflowError e) {
+            throw stackOverflow(fn);
+        }
+    }
 
-            var scope = new Environment(fnValue.declarationEnv);
-            for(int i = 0; i < fnValue.parameters.size(); i++) {
-//                System.out.println(fnValue.parameters.get(i).toString() + " " + args.get(i));
-                scope.declareVariable(((Identifier)fnValue.parameters.get(i)).symbol, args.get(i), false);
-            }
+    // Recursion deeper than the Java stack ends the script with an error, the same in every engine and the JIT
+    static DexError stackOverflow(RuntimeValue fn) {
+        return new DexError("StackOverflow: Too many nested calls in " + describeFunction(fn));
+    }
 
-            var res =  evaluate(fnValue.returnExpr, scope);
-            CallStack.pop();
-            return res;
+    // Extra arguments are ignored, missing ones are an error before anything is bound
+    static void checkArity(RuntimeValue fn, ArrayList<Expr> parameters, ArrayList<RuntimeValue> args) {
+        if(args.size() < parameters.size()) {
+            throw new DexError("ArityError: " + describeFunction(fn) + " expects " + parameters.size()
+                    + " arguments but was given " + args.size());
+        }
+    }
+
+    private static String describeFunction(RuntimeValue fn) {
+        return fn instanceof RFunctionValue fnValue ? fnValue.functionName : "an anonymous function";
+    }
+
+    static Environment enterFrame(Environment previous, boolean reuseFrame, Environment declarationEnv, int frameSize) {
+        if(reuseFrame) {
+            previous.clear();
+            return previous;
         }
-        System.err.println("Cannot call a value which is not a native function " + fn);
-        System.exit(0);
-        return new RNullValue();
+        return new Environment(declarationEnv, frameSize);
     }
 
     static RuntimeValue evaluateMemberExpr(MemberExpr memberExpr, Environment env) {
@@ -387,73 +449,101 @@ public class Interpreter {
     }
 
     static RuntimeValue evaluateList(ListStructure list, Environment env) {
-        RListValue newList = new RListValue();
+        var newList = new PersistentVector.Builder();
         for(Expr content: list.contents) {
-            newList.contents.add(evaluate(content, env));
+            newList.add(evaluate(content, env));
         }
-        return newList;
+        return new RListValue(newList.build());
     }
 
     static RuntimeValue evaluateMap(MapStructure map, Environment env) {
-        RMapStructure newMap = new RMapStructure();
+        var newMap = PersistentMap.EMPTY;
         for (Map.Entry<Expr,Expr> mapElement : map.map.entrySet()) {
             RuntimeValue key;
 
             if(mapElement.getKey().getKind() == AstNode.Identifier) {
-                key = evaluate(Utils.identifierToAtom((Identifier) mapElement.getKey()), env);
+                key = RAtomValue.of(((Identifier) mapElement.getKey()).symbol);
             } else {
                 key = evaluate(mapElement.getKey(), env);
             }
             var value = evaluate(mapElement.getValue(), env);
-            newMap.map.put(key, value);
+            newMap = newMap.with(key, value);
         }
-        return newMap;
+        return new RMapStructure(newMap);
     }
 
     static RuntimeValue evaluateStringLiterals(StringLiteral string, Environment env) {
-        RStringValue newString = new RStringValue(string.value);
-        ArrayList<RuntimeValue> resultantValues = string.getInterpolatedValues().stream().map(arg -> evaluate(arg, env)).collect(Collectors.toCollection(ArrayList::new));
-        ArrayList<String> interpolatedStrings = string.getInterpolatedString();
+        if(!string.isInterpolated()) {
+            return string.runtimeValue();
+        }
+        var chunks = string.getChunks();
+        var values = string.getInterpolatedValues();
+
+        // Fill a single presized builder instead of rescanning the string per placeholder
+        StringBuilder res = new StringBuilder(string.getLiteralLength() + 16 * values.size());
+        res.append(chunks.get(0));
+        for(int i = 0; i < values.size(); i++) {
+            res.append(evaluate(values.get(i), env).toRawString());
+            res.append(chunks.get(i + 1));
+        }
+        return new RStringValue(res.toString());
+    }
 
-        if(resultantValues.size() == interpolatedStrings.size()) {
+    // Runs the statements of a called function in its scope. The return completion ends the call
+    static RuntimeValue evaluateFunctionBody(ArrayList<Stmt> body, Environment scope) {
+        var result = runFunctionBody(body, scope);
+        if(result instanceof RTailCall tailCall) {
+            return callFunction(tailCall.fn, tailCall.args, scope);
+        }
+        return result;
+    }
 
-            for(int i = 0; i < resultantValues.size(); i++) {
-                newString.value = newString.value.replace("#{"+ interpolatedStrings.get(i) + "}", resultantValues.get(i).toRawString());
+    // Like evaluateFunctionBody, but hands a pending tail call back to callFunction
+    private static RuntimeValue runFunctionBody(ArrayList<Stmt> body, Environment scope) {
+        for(var stmt: body) {
+            var result = evaluate(stmt, scope);
+            switch (result.getKind()) {
+                case Break, Continue -> {
+                    throw new DexError("Top level break/continue statements are not allowed");
+                }
+                case Return -> {
+                    return result instanceof RTailCall ? result : ((RReturn) result).value;
+                }
             }
         }
-        return newString;
+        return RNullValue.NULL;
     }
 
-    // Evaluate body of statements
-    static RuntimeValue evaluateBody(ArrayList<Stmt> body, Environment env) {
-        RuntimeValue lastEvaluated = new RNullValue();
-        var scope = new Environment(env);
+    // Evaluate body of statements. Break, continue and return completions are handed back to the caller
+    static RuntimeValue evaluateBody(ArrayList<Stmt> body, int frameSize, Environment env) {
+        var scope = new Environment(env, frameSize);
         for(var stmt: body){
-            lastEvaluated = evaluate(stmt, scope);
-            if(lastEvaluated.getKind() == RuntimeValueType.Break || lastEvaluated.getKind() == RuntimeValueType.Continue)
-                return lastEvaluated;
-            if(isReturnIssued) break;
+            var lastEvaluated = evaluate(stmt, scope);
+            switch (lastEvaluated.getKind()) {
+                case Break, Continue, Return -> {
+                    return lastEvaluated;
+                }
+            }
         }
-        return new RBooleanValue(true);
+        return RBooleanValue.TRUE;
     }
 
     // Evaluate If clause
     static RuntimeValue evaluateIfClause(IfNode ifNode, Environment env) {
         if(ifNode.isElse) {
-            evaluateBody(ifNode.block, env);
-            return new RBooleanValue(true);
+            return evaluateBody(ifNode.block, ifNode.frameSize, env);
         }
         var condition = evaluate(ifNode.condition, env);
         if(condition.getKind() == RuntimeValueType.Boolean){
             // If the condition is false
-            if(!((RBooleanValue) condition).value) return new RBooleanValue(true);
+            if(!((RBooleanValue) condition).value) return RBooleanValue.TRUE;
         }
 
-        var res = evaluateBody(ifNode.block, env);
+        var res = evaluateBody(ifNode.block, ifNode.frameSize, env);
         if(res.getKind() != RuntimeValueType.Boolean)
             return res;
 
-        return new RBooleanValue(true);
+        return RBooleanValue.TRUE;
     }
 
     // Evaluating If statement
@@ -463,16 +553,18 @@ public class Interpreter {
             RuntimeValue isEvaluated = evaluateIfClause(clause, env);
             if(isEvaluated.getKind() == RuntimeValueType.Boolean)
                 if(((RBooleanValue) isEvaluated).value) break;
-            if(isEvaluated.getKind() == RuntimeValueType.Break || isEvaluated.getKind() == RuntimeValueType.Continue)
-                return isEvaluated;
+            switch (isEvaluated.getKind()) {
+                case Break, Continue, Return -> {
+                    return isEvaluated;
+                }
+            }
         }
-        return new RBooleanValue(true);
+        return RBooleanValue.TRUE;
     }
 
     static RuntimeValue evaluateWhileStatement(WhileStatement whileStatement, Environment env) {
         if(evaluate(whileStatement.condition, env).getKind() != RuntimeValueType.Boolean) {
-            System.err.println("Condition in while should be a boolean");
-            System.exit(0);
+            throw new DexError("Condition in while should be a boolean");
         }
         var condition = ((RBooleanValue) evaluate(whileStatement.condition, env)).value;
         boolean doesBreak = false;
@@ -487,30 +579,30 @@ public class Interpreter {
                 if(res.getKind() == RuntimeValueType.Continue) {
                     break;
                 }
+                if(res.getKind() == RuntimeValueType.Return) {
+                    return res;
+                }
             }
             if(doesBreak) break;
             condition = ((RBooleanValue) evaluate(whileStatement.condition, env)).value;
         }
-        return new RNullValue();
+        return RNullValue.NULL;
     }
 
     static RuntimeValue evaluateFunctionValue(FunctionDeclaration fd, Environment env) {
-        var fnValue = new RFunctionValue(fd.functionName, fd.parameters, fd.body, env);
-        return env.declareVariable(fd.functionName, fnValue, false);
+        var fnValue = new RFunctionValue(fd.functionName, fd.parameters, fd.body, fd.frameSize, env);
+        return env.assignVariable(0, fd.slot, fd.functionName, fnValue);
     }
 
     static RuntimeValue evaluateAnonymousFn(AnonymousFn fn, Environment env) {
-        return new RAnonymousFn(fn.parameters, fn.returnExpr, env);
+        return new RAnonymousFn(fn.parameters, fn.returnExpr, fn.frameSize, env);
     }
 
     static RuntimeValue evaluate(Stmt astNode, Environment env) {
         if(astNode.getKind() != null) {
             switch (astNode.getKind()) {
                 case NumericLiteral -> {
-                    var number = new RNumberValue();
-                    NumericLiteral asNumber = (NumericLiteral) astNode;
-                    number.number = asNumber.value;
-                    return number;
+                    return ((NumericLiteral) astNode).runtimeValue();
                 }
                 case IfStatement -> {
                     return evaluateIfStatement((IfStatement) astNode, env);
@@ -537,8 +629,7 @@ public class Interpreter {
                     return evaluateMemberExpr((MemberExpr) astNode, env);
                 }
                 case Atom -> {
-                    String atomValue = ((Atom) astNode).value;
-                    return new RAtomValue(atomValue);
+                    return ((Atom) astNode).runtimeValue();
                 }
                 case StringLiteral -> {
 //                    return new RStringValue(((StringLiteral)astNode).value);
@@ -563,17 +654,16 @@ public class Interpreter {
                     return evaluateAnonymousFn((AnonymousFn) astNode, env);
                 }
                 case Break -> {
-                    return new RBreak();
+                    return RBreak.BREAK;
                 }
                 case Continue -> {
-                    return new RContinue();
+                    return RContinue.CONTINUE;
                 }
                 default -> {
-                    System.err.println("This AST Node has not yet been setup for interpretation. " + astNode);
-                    System.exit(0);
+                    throw new DexError("This AST Node has not yet been setup for interpretation. " + astNode);
                 }
             }
         }
-        return new RNullValue();
+        return RNullValue.NULL;
     }
 }
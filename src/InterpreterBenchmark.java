@@ -0,0 +1,58 @@
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Throughput of many small scripts running at once, each on its own Interpreter instance.
+// Runs the same batch with 1, 2, 4, ... threads up to the number of cores and prints scripts per second.
+// Usage: java InterpreterBenchmark [scripts per batch], runs on the engine set by -Ddex.engine
+public class InterpreterBenchmark {
+
+    private static final String SOURCE = """
+            def fib(n) do
+              if (n < 2) do
+                return n
+              end
+              return fib(n - 1) + fib(n - 2)
+            end
+
+            words = String.split("the quick brown fox jumps over the lazy dog", " ")
+            lengths = Enum.reduce(words, %{}, fn w, acc -> Map.put(acc, w, String.length(w)) end)
+            squares = Enum.map([1, 2, 3, 4, 5, 6, 7, 8, 9, 10], fn x -> x * x end)
+            fib(16) + Enum.sum(squares) + Enum.count(lengths) + Enum.count(Enum.sort(words))
+            """;
+
+    public static void main(String[] args) throws Exception {
+        int scripts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        var engine = Engine.fromProperty();
+
+        // Warm up the JVM before measuring
+        runBatch(scripts / 4, cores, engine);
+
+        double single = 0;
+        for(int threads = 1; threads <= cores; threads = threads < cores ? Math.min(threads * 2, cores) : threads + 1) {
+            long start = System.nanoTime();
+            runBatch(scripts, threads, engine);
+            double perSecond = scripts / ((System.nanoTime() - start) / 1e9);
+            if(threads == 1) single = perSecond;
+            System.out.printf("%2d threads: %8.0f scripts/s, %.2fx%n", threads, perSecond, perSecond / single);
+        }
+    }
+
+    private static void runBatch(int scripts, int threads, Engine engine) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            var results = new ArrayList<Future<RuntimeValue>>(scripts);
+            for(int i = 0; i < scripts; i++) {
+                results.add(pool.submit(() -> new Interpreter(engine).run(SOURCE)));
+            }
+            for(var result: results) {
+                result.get();
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,486 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Entry point of a generated class. Arguments and result are unboxed numbers
+interface JitFunction {
+    double call(double[] args);
+}
+
+// Generated code of a def together with the binding its self calls go through
+class JitCode {
+    public final JitFunction function;
+    public final int depth;
+    public final int slot;
+
+    public JitCode(JitFunction function, int depth, int slot) {
+        this.function = function;
+        this.depth = depth;
+        this.slot = slot;
+    }
+}
+
+// Second tier of the tree Interpreter. Counts calls per function value and, past a threshold,
+// translates numeric defs into a JVM class loaded as a hidden class, so HotSpot compiles them to machine code.
+// Supported bodies are guard clauses `if (cond) do return expr end` followed by a final `return expr`,
+// over number literals, parameters, arithmetic, comparisons, and/or and calls of the function itself.
+// Anything else keeps running in the Interpreter
+public class JitCompiler {
+
+    // Calls before a function is compiled. -Ddex.jit.threshold=0 turns the tier off
+    static final int THRESHOLD = Integer.getInteger("dex.jit.threshold", 1000);
+
+    // Marks function values that were found unsupported, so they are not looked at again
+    private static final int UNSUPPORTED = -1;
+
+    // Runs the generated code of the function when its assumptions hold, otherwise returns null
+    // and leaves the call to the Interpreter
+    static RuntimeValue call(RFunctionValue fn, ArrayList<RuntimeValue> args) {
+        // Read once, parallel Enum workers may be compiling the same function. Final fields
+        // in JitCode make a published instance safe to use from any thread
+        var code = fn.jitCode;
+        if(code == null) {
+            if(THRESHOLD <= 0 || fn.callCount == UNSUPPORTED || ++fn.callCount < THRESHOLD) return null;
+            code = compile(fn);
+            if(code == null) {
+                fn.callCount = UNSUPPORTED;
+                return null;
+            }
+            fn.jitCode = code;
+        }
+
+        int arity = fn.parameters.size();
+        if(args.size() < arity) return null;
+        double[] numbers = new double[arity];
+        for(int i = 0; i < arity; i++) {
+            if(!(args.get(i) instanceof RNumberValue number)) return null;
+            numbers[i] = number.number;
+        }
+
+        // Self calls are linked directly, which is only right while the name still holds this function
+        if(code.slot != -1 && fn.declarationEnv.lookupVariable(code.depth, code.slot, fn.functionName) != fn) return null;
+
+        try {
+            return RNumberValue.of(code.function.call(numbers));
+        }
+        catch (StackOverflowError e) {
+            throw Interpreter.stackOverflow(fn);
+        }
+    }
+
+    // Thrown while generating code for a construct the compiler doesn't handle, the function stays interpreted
+    private static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    static JitCode compile(RFunctionValue fn) {
+        var generator = new Generator(fn);
+        byte[] classFile;
+        try {
+            classFile = generator.generate();
+        }
+        catch (Unsupported e) {
+            return null;
+        }
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            var constructor = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class));
+            return new JitCode((JitFunction) constructor.invoke(), generator.selfDepth, generator.selfSlot);
+        }
+        catch (Throwable e) {
+            return null;
+        }
+    }
+
+    // Writes a class file by hand. Version 49 predates stack map frames, so branches need no frame bookkeeping
+    private static class Generator {
+        private static final String CLASS_NAME = "JitCompiled";
+        private static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+        private final RFunctionValue fn;
+        private final String bodyDescriptor;
+
+        // Binding of the function name as seen from the function scope, relative to its declaration env
+        public int selfDepth = -1;
+        public int selfSlot = -1;
+
+        // Constant pool
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final HashMap<String, Integer> poolEntries = new HashMap<>();
+        private int poolCount = 1;
+
+        // Code of the method being generated
+        private ByteArrayOutputStream code;
+        private int stack;
+        private int maxStack;
+
+        Generator(RFunctionValue fn) {
+            this.fn = fn;
+            this.bodyDescriptor = "(" + "D".repeat(fn.parameters.size()) + ")D";
+        }
+
+        byte[] generate() {
+            for(var parameter: fn.parameters) {
+                if(parameter.getKind() != AstNode.Identifier) unsupported();
+            }
+
+            int thisClass = classEntry(CLASS_NAME);
+            int superClass = classEntry("java/lang/Object");
+            int entryInterface = classEntry("JitFunction");
+
+            var methods = new ByteArrayOutputStream();
+            var methodsOut = new DataOutputStream(methods);
+            try {
+                writeMethod(methodsOut, ACC_PUBLIC, "<init>", "()V", constructorCode(), 1);
+                writeMethod(methodsOut, ACC_PUBLIC, "call", "([D)D", entryCode(), 2);
+                writeMethod(methodsOut, ACC_PRIVATE | ACC_STATIC, "body", bodyDescriptor, bodyCode(), Math.max(1, 2 * fn.parameters.size()));
+
+                var classFile = new ByteArrayOutputStream();
+                var out = new DataOutputStream(classFile);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(poolCount);
+                pool.writeTo(out);
+                out.writeShort(ACC_FINAL | ACC_SUPER);
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(entryInterface);
+                out.writeShort(0);
+                out.writeShort(3);
+                methods.writeTo(out);
+                out.writeShort(0);
+                return classFile.toByteArray();
+            }
+            catch (IOException e) {
+                // Writes to a byte array, never happens
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void unsupported() {
+            throw new Unsupported();
+        }
+
+        // Constant pool entries, shared when they repeat
+
+        private int entry(String key, int size, PoolWriter writer) {
+            var index = poolEntries.get(key);
+            if(index != null) return index;
+            try {
+                writer.write(poolOut);
+            }
+            catch (IOException e) {
+                // Writes to a byte array, never happens
+                throw new UncheckedIOException(e);
+            }
+            poolEntries.put(key, poolCount);
+            poolCount += size;
+            if(poolCount > 0xFFFF) unsupported();
+            return poolCount - size;
+        }
+
+        private interface PoolWriter {
+            void write(DataOutputStream out) throws IOException;
+        }
+
+        private int utf8(String value) {
+            return entry("U" + value, 1, out -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        private int classEntry(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, 1, out -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        private int methodEntry(String owner, String name, String descriptor) {
+            int ownerIndex = classEntry(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + descriptor, 1, out -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return entry("M" + owner + "." + name + descriptor, 1, out -> {
+                out.writeByte(10);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int doubleEntry(double value) {
+            return entry("D" + Double.doubleToRawLongBits(value), 2, out -> {
+                out.writeByte(6);
+                out.writeDouble(value);
+            });
+        }
+
+        private void writeMethod(DataOutputStream out, int flags, String name, String descriptor, byte[] body, int maxLocals) throws IOException {
+            if(body.length > 0xFFFF) unsupported();
+            int codeName = utf8("Code");
+            out.writeShort(flags);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + body.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+
+        // Instructions
+
+        private void begin() {
+            code = new ByteArrayOutputStream();
+            stack = 0;
+            maxStack = 0;
+        }
+
+        private void op(int opCode, int stackChange) {
+            code.write(opCode);
+            stack += stackChange;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u2(int value) {
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        // Emits a branch with a placeholder offset and returns its position
+        private int branch(int opCode, int stackChange) {
+            int position = code.size();
+            op(opCode, stackChange);
+            u2(0);
+            return position;
+        }
+
+        private byte[] patch(byte[] body, ArrayList<int[]> jumps) {
+            for(int[] jump: jumps) {
+                int offset = jump[1] - jump[0];
+                if(offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) unsupported();
+                body[jump[0] + 1] = (byte) (offset >> 8);
+                body[jump[0] + 2] = (byte) offset;
+            }
+            return body;
+        }
+
+        private byte[] constructorCode() {
+            begin();
+            op(0x2A, 1);                                               // aload_0
+            op(0xB7, -1);                                              // invokespecial Object.<init>
+            u2(methodEntry("java/lang/Object", "<init>", "()V"));
+            op(0xB1, 0);                                               // return
+            return code.toByteArray();
+        }
+
+        // call([D)D unpacks the arguments into the static body
+        private byte[] entryCode() {
+            begin();
+            for(int i = 0; i < fn.parameters.size(); i++) {
+                op(0x2B, 1);                                           // aload_1
+                pushInt(i);
+                op(0x31, 0);                                           // daload
+            }
+            op(0xB8, -2 * fn.parameters.size() + 2);                   // invokestatic body
+            u2(methodEntry(CLASS_NAME, "body", bodyDescriptor));
+            op(0xAF, -2);                                              // dreturn
+            return code.toByteArray();
+        }
+
+        private void pushInt(int value) {
+            if(value <= 5) {
+                op(0x03 + value, 1);                                   // iconst_<n>
+            }
+            else if(value <= Byte.MAX_VALUE) {
+                op(0x10, 1);                                           // bipush
+                code.write(value);
+            }
+            else {
+                op(0x11, 1);                                           // sipush
+                u2(value);
+            }
+        }
+
+        // Positions of branches and their targets, patched once the method is complete
+        private ArrayList<int[]> jumps;
+
+        private byte[] bodyCode() {
+            begin();
+            jumps = new ArrayList<>();
+            var body = fn.body;
+            if(body.isEmpty() || body.get(body.size() - 1).getKind() != AstNode.ReturnStatement) unsupported();
+
+            for(int i = 0; i < body.size() - 1; i++) {
+                // Guard clauses: if (cond) do return expr end
+                if(body.get(i).getKind() != AstNode.IfStatement) unsupported();
+                var clauses = ((IfStatement) body.get(i)).clauses;
+                if(clauses.size() != 1 || clauses.get(0).isElse) unsupported();
+                var clause = clauses.get(0);
+                if(clause.block.size() != 1 || clause.block.get(0).getKind() != AstNode.ReturnStatement) unsupported();
+
+                var skip = new ArrayList<Integer>();
+                condition(clause.condition, 0, skip);
+                returnValue(((ReturnStatement) clause.block.get(0)).returnValue, 1);
+                for(int position: skip) jumps.add(new int[] { position, code.size() });
+            }
+            returnValue(((ReturnStatement) body.get(body.size() - 1)).returnValue, 0);
+            return patch(code.toByteArray(), jumps);
+        }
+
+        // A self call in tail position becomes a jump back to the start with new parameter values,
+        // the same constant stack space the Interpreter gives it
+        private void returnValue(Expr expr, int blockDepth) {
+            if(expr.getKind() != AstNode.CallExpr || !((CallExpr) expr).isTailCall) {
+                numeric(expr, blockDepth);
+                op(0xAF, -2);                                          // dreturn
+                return;
+            }
+            var callExpr = (CallExpr) expr;
+            selfCall(callExpr, blockDepth);
+            for(var arg: callExpr.args) {
+                numeric(arg, blockDepth);
+            }
+            for(int i = callExpr.args.size() - 1; i >= 0; i--) {
+                op(0x39, -2);                                          // dstore
+                code.write(2 * i);
+            }
+            jumps.add(new int[] { branch(0xA7, 0), 0 });               // goto
+        }
+
+        // Checks that a call targets the function itself. Every self call has to go through
+        // the same binding, the entry guard checks it once
+        private void selfCall(CallExpr callExpr, int blockDepth) {
+            if(callExpr.caller.getKind() != AstNode.Identifier || callExpr.args.size() != fn.parameters.size()) unsupported();
+            var caller = (Identifier) callExpr.caller;
+            if(!caller.symbol.equals(fn.functionName) || caller.depth <= blockDepth) unsupported();
+
+            int depth = caller.depth - blockDepth - 1;
+            if(selfSlot != -1 && (selfDepth != depth || selfSlot != caller.slot)) unsupported();
+            selfDepth = depth;
+            selfSlot = caller.slot;
+        }
+
+        // Index of the parameter read by an identifier, blockDepth is the number of if-blocks around it
+        private int parameterIndex(Identifier identifier, int blockDepth) {
+            if(identifier.depth != blockDepth) return -1;
+            for(int i = 0; i < fn.parameters.size(); i++) {
+                if(((Identifier) fn.parameters.get(i)).slot == identifier.slot) return i;
+            }
+            return -1;
+        }
+
+        // Pushes a double
+        private void numeric(Expr expr, int blockDepth) {
+            switch (expr.getKind()) {
+                case NumericLiteral -> {
+                    double value = ((NumericLiteral) expr).value;
+                    if(Double.doubleToRawLongBits(value) == 0L) {
+                        op(0x0E, 2);                                   // dconst_0
+                    }
+                    else if(value == 1.0) {
+                        op(0x0F, 2);                                   // dconst_1
+                    }
+                    else {
+                        op(0x14, 2);                                   // ldc2_w
+                        u2(doubleEntry(value));
+                    }
+                }
+                case Identifier -> {
+                    int index = parameterIndex((Identifier) expr, blockDepth);
+                    if(index == -1) unsupported();
+                    op(0x18, 2);                                       // dload
+                    code.write(2 * index);
+                }
+                case BinaryExpr -> {
+                    var binExp = (BinaryExpr) expr;
+                    int opCode = switch (binExp.op) {
+                        case Add -> 0x63;                              // dadd
+                        case Subtract -> 0x67;                         // dsub
+                        case Multiply -> 0x6B;                         // dmul
+                        case Divide -> 0x6F;                           // ddiv
+                        case Modulo -> 0x73;                           // drem
+                        default -> -1;
+                    };
+                    if(opCode == -1) unsupported();
+                    numeric(binExp.left, blockDepth);
+                    numeric(binExp.right, blockDepth);
+                    op(opCode, -2);
+                }
+                case CallExpr -> {
+                    var callExpr = (CallExpr) expr;
+                    selfCall(callExpr, blockDepth);
+                    for(var arg: callExpr.args) {
+                        numeric(arg, blockDepth);
+                    }
+                    op(0xB8, -2 * callExpr.args.size() + 2);           // invokestatic body
+                    u2(methodEntry(CLASS_NAME, "body", bodyDescriptor));
+                }
+                default -> unsupported();
+            }
+        }
+
+        // Jumps to one of the returned positions when the condition does not hold.
+        // Both sides of and/or are evaluated like in the Interpreter, there are no side effects to skip
+        private void condition(Expr expr, int blockDepth, ArrayList<Integer> whenFalse) {
+            if(expr.getKind() != AstNode.BinaryExpr) unsupported();
+            var binExp = (BinaryExpr) expr;
+            switch (binExp.op) {
+                case And -> {
+                    condition(binExp.left, blockDepth, whenFalse);
+                    condition(binExp.right, blockDepth, whenFalse);
+                }
+                case Or -> {
+                    var tryRight = new ArrayList<Integer>();
+                    condition(binExp.left, blockDepth, tryRight);
+                    int taken = branch(0xA7, 0);                       // goto
+                    for(int position: tryRight) jumps.add(new int[] { position, code.size() });
+                    condition(binExp.right, blockDepth, whenFalse);
+                    jumps.add(new int[] { taken, code.size() });
+                }
+                case LessThan, LessThanOrEqual, GreaterThan, GreaterThanOrEqual, Equals, NotEqual -> {
+                    numeric(binExp.left, blockDepth);
+                    numeric(binExp.right, blockDepth);
+                    int negated;
+                    switch (binExp.op) {
+                        case LessThan -> { op(0x98, -3); negated = 0x9C; }            // dcmpg, ifge
+                        case LessThanOrEqual -> { op(0x98, -3); negated = 0x9D; }     // dcmpg, ifgt
+                        case GreaterThan -> { op(0x97, -3); negated = 0x9E; }         // dcmpl, ifle
+                        case GreaterThanOrEqual -> { op(0x97, -3); negated = 0x9B; }  // dcmpl, iflt
+                        default -> {
+                            // Same Double.compare semantics as Interpreter.evaluateNumericRelationalExpr
+                            op(0xB8, -3);                                              // invokestatic Double.compare
+                            u2(methodEntry("java/lang/Double", "compare", "(DD)I"));
+                            negated = binExp.op == Operator.Equals ? 0x9A : 0x99;      // ifne, ifeq
+                        }
+                    }
+                    whenFalse.add(branch(negated, -1));
+                }
+                default -> unsupported();
+            }
+        }
+    }
+}
@@ -1,17 +1,17 @@
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
+// Runs over any CharSequence, a file is lexed straight from the buffer it was decoded into
 public class Lexer {
 
-    private String src;
-    private Integer i;
+    private final CharSequence src;
+    private int i;
+
+    // Type of the previously produced token. Used to tell a negative sign apart from a minus operator
+    private TokenType lastType;
     public static HashMap<String, TokenType> KEYWORDS;
 
-    Lexer(String src) {
+    Lexer(CharSequence src) {
         this.src = src;
         this.i = 0;
     }
@@ -40,166 +40,155 @@ public class Lexer {
         return this.i < this.src.length();
     }
 
+    private boolean peekChar(char expected) {
+        return this.i + 1 < this.src.length() && src.charAt(this.i + 1) == expected;
+    }
+
     private Token lexString() {
-        StringBuilder val = new StringBuilder("\"");
-        i++;
+        int start = i++;
         while(this.borderCheck() && src.charAt(i) != '"') {
-            val.append(src.charAt(i++));
-//            if(src.charAt(i) == '#') {
-//                if(src.charAt(i + 1) == '{') {
-//                    val.append("#{");
-//                    i += 2;
-//                    while(this.borderCheck() && src.charAt(i) != '}')
-//                        val.append(src.charAt(i++));
-//                    val.append(src.charAt(i++));
-//                    if(this.borderCheck() && src.charAt(i) == '"') break;
-//                }
-//            }
-
+            i++;
         }
         if(!borderCheck()) {
-            System.err.println("Invalid String. Entered expected closing quotes.");
-            System.exit(0);
-        }
-        if(src.charAt(i) == '"') val.append(src.charAt(i++));
-        else {
-            System.err.println("Invalid token found " + src.charAt(i));
-            System.exit(0);
+            throw new DexError("Invalid String. Entered expected closing quotes.");
         }
+        // The value holds only the characters between the quotes
+        i++;
+        return new Token(src.subSequence(start + 1, i - 1).toString(), TokenType.String);
+    }
 
 
-        return new Token(val.toString(), TokenType.String);
+    // Produces the next token on demand so the whole token list is never held in memory
+    public Token nextToken() {
+        Token token = this.lexToken();
+        this.lastType = token.type;
+        return token;
     }
 
-
-    public List<Token> tokenize() {
+    private Token lexToken() {
 
         // TODO deal with later
 //        String regexString = "\"[^\"]*\"";
 
-        List<Token> tokens = new ArrayList<>();
         while(this.i < this.src.length()) {
-            if(src.charAt(i) == '(' ) {
-                tokens.add(new Token("(", TokenType.OpenParen));
+            char c = src.charAt(i);
+            if(c == '(' ) {
+                i++;
+                return new Token("(", TokenType.OpenParen);
             }
-            else if(src.charAt(i) == ')') {
-                tokens.add(new Token(")", TokenType.CloseParen));
+            else if(c == ')') {
+                i++;
+                return new Token(")", TokenType.CloseParen);
             }
-            else if(src.charAt(i) == '{') {
-                tokens.add(new Token("{", TokenType.OpenBrace));
+            else if(c == '{') {
+                i++;
+                return new Token("{", TokenType.OpenBrace);
             }
-            else if(src.charAt(i) == '}') {
-                tokens.add(new Token("}", TokenType.CloseBrace));
+            else if(c == '}') {
+                i++;
+                return new Token("}", TokenType.CloseBrace);
             }
-            else if(src.charAt(i) == '[') {
-                tokens.add(new Token("[", TokenType.OpenSquare));
+            else if(c == '[') {
+                i++;
+                return new Token("[", TokenType.OpenSquare);
             }
-            else if(src.charAt(i) == ']') {
-                tokens.add(new Token("]", TokenType.CloseSquare));
+            else if(c == ']') {
+                i++;
+                return new Token("]", TokenType.CloseSquare);
             }
-            else if(src.charAt(i) == ',') {
-                tokens.add(new Token(",", TokenType.Comma));
+            else if(c == ',') {
+                i++;
+                return new Token(",", TokenType.Comma);
             }
-            else if(src.charAt(i) == '.') {
-                tokens.add(new Token(".", TokenType.Dot));
+            else if(c == '.') {
+                i++;
+                return new Token(".", TokenType.Dot);
             }
             // Check for -ve numbers before checking for binary operators
-            else if(src.charAt(i) == '+' || src.charAt(i) == '-' || src.charAt(i) == '*' || src.charAt(i) == '/' || src.charAt(i) == '%') {
-                if (src.charAt(i) == '-' && (tokens.isEmpty() || tokens.get(tokens.size() - 1).type != TokenType.Number)) {
-                    if(src.charAt(i + 1) == '>') {
+            else if(c == '+' || c == '-' || c == '*' || c == '/' || c == '%') {
+                i++;
+                if (c == '-' && this.lastType != TokenType.Number) {
+                    if(this.borderCheck() && src.charAt(i) == '>') {
                         i++;
-                        tokens.add(new Token("->", TokenType.ArrowOperator));
-                    } else {
-                        tokens.add(new Token("-", TokenType.Minus));
+                        return new Token("->", TokenType.ArrowOperator);
                     }
-                } else {
-                    tokens.add(new Token(Character.toString(src.charAt(i)), TokenType.BinaryOperator));
+                    return new Token("-", TokenType.Minus);
                 }
+                return new Token(Character.toString(c), TokenType.BinaryOperator);
             }
-            else if(src.charAt(i) == '<') {
-                if(this.borderCheck() && src.charAt(i + 1) == '=') {
-                    tokens.add(new Token("<=", TokenType.LessThanOrEqual));
+            else if(c == '<') {
+                if(this.peekChar('=')) {
                     i += 2;
-                    continue;
+                    return new Token("<=", TokenType.LessThanOrEqual);
                 }
-                tokens.add(new Token("<", TokenType.LessThan));
+                i++;
+                return new Token("<", TokenType.LessThan);
             }
-            else if(src.charAt(i) == '>') {
-                if(this.borderCheck() && src.charAt(i + 1) == '=') {
-                    tokens.add(new Token(">=", TokenType.GreaterThanOrEqual));
+            else if(c == '>') {
+                if(this.peekChar('=')) {
                     i += 2;
-                    continue;
+                    return new Token(">=", TokenType.GreaterThanOrEqual);
                 }
-                tokens.add(new Token(">", TokenType.GreaterThan));
-
+                i++;
+                return new Token(">", TokenType.GreaterThan);
             }
-            else if(src.charAt(i) == '=') {
-                if(this.borderCheck() && src.charAt(i + 1) == '=') {
-                    tokens.add(new Token("==", TokenType.Equals));
+            else if(c == '=') {
+                if(this.peekChar('=')) {
                     i += 2;
-                    continue;
+                    return new Token("==", TokenType.Equals);
                 }
-                if(this.borderCheck() && src.charAt(i + 1) == '>') {
-                    tokens.add(new Token("=>", TokenType.MapOperator));
+                if(this.peekChar('>')) {
                     i += 2;
-                    continue;
+                    return new Token("=>", TokenType.MapOperator);
                 }
-                tokens.add(new Token("=", TokenType.Match));
+                i++;
+                return new Token("=", TokenType.Match);
             }
-            else if(src.charAt(i) == '!') {
-                if(this.borderCheck() && src.charAt(i + 1) == '=') {
-                    tokens.add(new Token("!=", TokenType.NotEqual));
+            else if(c == '!') {
+                if(this.peekChar('=')) {
                     i += 2;
-                    continue;
+                    return new Token("!=", TokenType.NotEqual);
                 }
-                tokens.add(new Token("!", TokenType.Not));
-            }
-            else if(src.charAt(i) == ':') {
-                StringBuilder atom = new StringBuilder(":");
                 i++;
-                if(Character.isLetter(src.charAt(i))) {
-                    atom.append(src.charAt(i++));
+                return new Token("!", TokenType.Not);
+            }
+            else if(c == ':') {
+                int start = i++;
+                if(this.borderCheck() && Character.isLetter(src.charAt(i))) {
+                    i++;
                     while(this.borderCheck() && (Character.isDigit(src.charAt(i)) || Character.isLetter(src.charAt(i))  || src.charAt(i) == '_'))
-                        atom.append(src.charAt(i++));
+                        i++;
                 }
-                tokens.add(new Token(atom.toString(), TokenType.Atom));
-                continue;
+                return new Token(src.subSequence(start, i).toString(), TokenType.Atom);
             }
             // FIXME
-            else if(src.charAt(i) == '"') {
-                tokens.add(this.lexString());
-                continue;
+            else if(c == '"') {
+                return this.lexString();
             }
-            else {
-                if(Character.isDigit(src.charAt(i))) {
-                    // Parse Integer
-                    StringBuilder num = new StringBuilder();
-                    while(this.i < this.src.length() && Character.isDigit(src.charAt(i)))
-                        num.append(src.charAt(i++));
-                    tokens.add(new Token(num.toString(), TokenType.Number));
-                }
-                else if(Character.isLetter(src.charAt(i))) {
-                    // Parse Identifier
-                    StringBuilder ident = new StringBuilder();
-                    ident.append(src.charAt(i++));
-                    while(this.i < this.src.length() && (Character.isDigit(src.charAt(i)) || Character.isLetter(src.charAt(i))  || src.charAt(i) == '_'))
-                        ident.append(src.charAt(i++));
-
-                    tokens.add(new Token(ident.toString(), KEYWORDS.getOrDefault(ident.toString(), TokenType.Identifier)));
-                }
-                else if(Character.isSpaceChar(src.charAt(i)) || (int) src.charAt(i) == 10) {
+            else if(Character.isDigit(c)) {
+                // Parse Integer
+                int start = i;
+                while(this.borderCheck() && Character.isDigit(src.charAt(i)))
                     i++;
-                }
-                else {
-                    System.err.println("Unrecognized character: " + (int) src.charAt(i));
-                    System.exit(0);
-                }
-                continue;
+                return new Token(src.subSequence(start, i).toString(), TokenType.Number);
+            }
+            else if(Character.isLetter(c)) {
+                // Parse Identifier
+                int start = i++;
+                while(this.borderCheck() && (Character.isDigit(src.charAt(i)) || Character.isLetter(src.charAt(i))  || src.charAt(i) == '_'))
+                    i++;
+                String ident = src.subSequence(start, i).toString();
+                return new Token(ident, KEYWORDS.getOrDefault(ident, TokenType.Identifier));
+            }
+            // \r of Windows line endings too, the file is no longer read line by line
+            else if(Character.isSpaceChar(c) || c == '\n' || c == '\r') {
+                i++;
+            }
+            else {
+                throw new DexError("Unrecognized character: " + (int) c);
             }
-            i++;
         }
-        tokens.add(new Token("EndOfFile", TokenType.EOF));
-        return tokens;
+        return new Token("EndOfFile", TokenType.EOF);
     }
 
 }
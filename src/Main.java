@@ -1,42 +1,63 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
+
 public class Main {
 
+    // Interpreter version, cached programs of another version are parsed again
+    static final String VERSION = "1.0";
+
+    // Files at least this big are mapped instead of read onto the heap
+    static final int MAP_THRESHOLD = 1 << 20;
+
+    // The whole file in one read, or mapped when it is large. Nothing is copied line by line
+    static ByteBuffer readSource(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while(buffer.hasRemaining() && channel.read(buffer) != -1) {}
+            return buffer.flip();
+        }
+    }
+
+    // Decoded in one step, the Lexer runs over the returned buffer
+    static CharBuffer decode(ByteBuffer source) {
+        return StandardCharsets.UTF_8.decode(source.duplicate());
+    }
+
     static void run(String filePath) {
-        StringBuilder sourceCode = new StringBuilder();
+        Path path = Path.of(filePath);
+        ByteBuffer source;
         try {
-            File Obj = new File(filePath);
-            Scanner Reader = new Scanner(Obj);
-            while (Reader.hasNextLine()) {
-                if(sourceCode.isEmpty()) {
-                    sourceCode.append(Reader.nextLine());
-                }
-                else {
-                    sourceCode.append("\n").append(Reader.nextLine());
-                }
-            }
-            Reader.close();
+            source = readSource(path);
         }
-        catch (FileNotFoundException e) {
+        catch (IOException e) {
             System.out.println("An error has occurred.");
             e.printStackTrace();
+            return;
         }
 
-        Parser parser = new Parser();
-
-        // The environment scope for the global variables
-        Environment env = Environment.createGlobalEnvironment();
-
-        Program program = parser.produceAst(sourceCode.toString());
-//        System.out.println(program.body);
-        var result = Interpreter.evaluateProgram(program, env);
+        try {
+            new Interpreter(Engine.fromProperty()).run(AstCache.load(path, source));
+        }
+        catch (DexError e) {
+            System.err.println(e.getMessage());
+            System.exit(0);
+        }
     }
     static void repl() {
         Scanner sc = new Scanner(System.in);
-        Parser parser = new Parser();
 
-        // The environment scope for the global variables
-        Environment env = Environment.createGlobalEnvironment();
+        // One instance for the session, the globals persist between prompts
+        Interpreter interpreter = new Interpreter(Engine.fromProperty());
         int line = 1;
         while(true) {
             System.out.print("dex(" + line + ")> ");
@@ -46,9 +67,16 @@ public class Main {
                 break;
             }
 
-
-            Program program = parser.produceAst(prompt);
-            var result = Interpreter.evaluateProgram(program, env);
+            RuntimeValue result;
+            try {
+                result = interpreter.run(prompt);
+            }
+            catch (DexError e) {
+                // An error ends the prompt, not the session
+                System.err.println(e.getMessage());
+                line++;
+                continue;
+            }
 
 
             // Don't print if it is a null character
@@ -1,39 +1,53 @@
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Modules {
 
     static void expect(RuntimeValueType given, RuntimeValueType expected, String msg) {
         if(given != expected) {
-            System.err.println(msg);
-            System.exit(0);
+            throw new DexError(msg);
         }
     }
 
+    // Indexes come in as numbers, one outside of [0, size) is a script error rather than a crash of the host
+    static int expectIndex(RNumberValue index, int size, String functionName) {
+        int position = (int) index.number;
+        if(position < 0 || position >= size) {
+            throw new DexError("InvalidIndexGiven: " + functionName + " was given index " + position + " for a size of " + size);
+        }
+        return position;
+    }
+
     static void expectArgs(String functionName, Integer givenArgs, Integer requiredArgs, String argFormat) {
         if(!Objects.equals(givenArgs, requiredArgs)) {
-            System.err.println("InvalidArguments: Argument format of " + functionName + " " + argFormat);
-            System.exit(0);
+            throw new DexError("InvalidArguments: Argument format of " + functionName + " " + argFormat);
         }
     }
 
     static void expectEnumerable(RuntimeValue given, String argFormat) {
-        if(given.getKind() == RuntimeValueType.List || given.getKind() == RuntimeValueType.Map)
+        if(Streams.isEnumerable(given))
             return;
-        System.err.println(argFormat);
-        System.exit(0);
+        throw new DexError(argFormat);
     }
 
     static void expectFunction(RuntimeValue given, String argFormat) {
         if(given.getKind() == RuntimeValueType.AnonymousFn || given.getKind() == RuntimeValueType.FunctionValue)
             return;
-        System.err.println(argFormat);
-        System.exit(0);
+        throw new DexError(argFormat);
+    }
+
+    static void expectArity(String functionName, RuntimeValue fn, int arity) {
+        var parameters = fn.getKind() == RuntimeValueType.AnonymousFn ? ((RAnonymousFn) fn).parameters : ((RFunctionValue) fn).parameters;
+        if(parameters.size() != arity) {
+            safeError(functionName + " The given function should have " + arity + (arity == 1 ? " argument" : " arguments"));
+        }
     }
 
     static void safeError(String msg) {
-        System.err.println(msg);
-        System.exit(0);
+        throw new DexError(msg);
     }
 
 
@@ -55,9 +69,7 @@ public class Modules {
             if(!map.map.containsKey(args.get(1))) {
                 safeError("IndexError: Map.delete() Map does not contain the given key");
             }
-            map.map.remove(args.get(1));
-
-            return map;
+            return new RMapStructure(map.map.without(args.get(1)));
         })));
 
         // fetch (map, key)
@@ -70,11 +82,8 @@ public class Modules {
 
             RMapStructure map = (RMapStructure) args.get(0);
 
-            if(!map.map.containsKey(args.get(1))) {
-                return new RNullValue();
-            }
-
-            return map.map.get(args.get(1));
+            var value = map.map.get(args.get(1));
+            return value == null ? RNullValue.NULL : value;
         })));
 
         // replace(map, key, value)
@@ -90,8 +99,19 @@ public class Modules {
                 safeError("IndexError: Map.replace() The given key is not present in the map");
             }
 
-            map.map.replace(args.get(1), args.get(2));
-            return map;
+            return new RMapStructure(map.map.with(args.get(1), args.get(2)));
+        })));
+
+        // put(map, key, value)
+        // Returns: A new map with the key set to the value, added if it isn't present
+
+        module.functions.put("put", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Map.put/3 (map, key, value)";
+            expectArgs("Map.put", args.size(), 3, "(map, key, value)");
+            expect(args.get(0).getKind(), RuntimeValueType.Map, argFormat);
+
+            RMapStructure map = (RMapStructure) args.get(0);
+            return new RMapStructure(map.map.with(args.get(1), args.get(2)));
         })));
 
         // to_list(map)
@@ -102,7 +122,7 @@ public class Modules {
             expect(args.get(0).getKind(), RuntimeValueType.Map, argFormat);
 
             RMapStructure map = (RMapStructure) args.get(0);
-            RListValue res = new RListValue();
+            var res = new PersistentVector.Builder();
 
             for(Map.Entry<RuntimeValue, RuntimeValue> entry : map.map.entrySet()) {
                 var key = entry.getKey();
@@ -110,11 +130,11 @@ public class Modules {
                 RTupleValue ans = new RTupleValue();
                 ans.contents.add(key);
                 ans.contents.add(value);
-                res.contents.add(ans);
+                res.add(ans);
             }
 
 
-            return res;
+            return new RListValue(res.build());
         })));
 
 
@@ -129,8 +149,7 @@ public class Modules {
         module.functions.put("map", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argFormat = "InvalidArguments: Argument Format of Enum.map/2 (enumerable, fn)";
             if(args.size() != 2) {
-                System.err.println(module.moduleName + " at function accepts only two argument");
-                System.exit(0);
+                throw new DexError(module.moduleName + " at function accepts only two argument");
             }
             var firstArg = args.get(0);
 
@@ -145,49 +164,56 @@ public class Modules {
                     var fnValue = (RAnonymousFn) args.get(1);
                     // args should be only 1
                     if(fnValue.parameters.size() != 1) {
-                        System.err.println("The map function should have only one arg for list");
-                        System.exit(0);
+                        throw new DexError("The map function should have only one arg for list");
                     }
-                    var innerScope = new Environment(fnValue.declarationEnv);
+                    var innerScope = new Environment(fnValue.declarationEnv, fnValue.frameSize);
 
                     var list = (RListValue) firstArg;
-                    RListValue res = new RListValue();
+                    var res = new PersistentVector.Builder();
                     for(var e: list.contents) {
-                        innerScope.declareVariable(((Identifier)fnValue.parameters.get(0)).symbol, e, false);
-                        res.contents.add(Interpreter.evaluate(fnValue.returnExpr, innerScope));
+                        innerScope.declareVariable((Identifier) fnValue.parameters.get(0), e);
+                        res.add(Interpreter.evaluate(fnValue.returnExpr, innerScope));
                     }
-                    return res;
+                    return new RListValue(res.build());
                 }
                 case Map -> {
                     var fnValue = (RAnonymousFn) args.get(1);
                     // args should be only 1
                     if(fnValue.parameters.size() != 2) {
-                        System.err.println("The map function should have two args for maps");
-                        System.exit(0);
+                        throw new DexError("The map function should have two args for maps");
                     }
-                    var innerScope = new Environment(fnValue.declarationEnv);
+                    var innerScope = new Environment(fnValue.declarationEnv, fnValue.frameSize);
 
                     var map = (RMapStructure) firstArg;
-                    RMapStructure res = new RMapStructure();
+                    var res = PersistentMap.EMPTY;
                     for(Map.Entry<RuntimeValue, RuntimeValue> entry: map.map.entrySet()) {
                         var key =  entry.getKey();
                         var value = entry.getValue();
-                        innerScope.declareVariable(((Identifier)fnValue.parameters.get(0)).symbol, key, false);
-                        innerScope.declareVariable(((Identifier)fnValue.parameters.get(1)).symbol, value, false);
+                        innerScope.declareVariable((Identifier) fnValue.parameters.get(0), key);
+                        innerScope.declareVariable((Identifier) fnValue.parameters.get(1), value);
                         var result = Interpreter.evaluate(fnValue.returnExpr, innerScope);
                         if(result.getKind() != RuntimeValueType.Tuple)
                             safeError("Enum.map The function should return a tuple of two elements for map operations");
                         var t = (RTupleValue) result;
                         if(t.contents.size() != 2)
                             safeError("Enum.map The function should return a tuple of two elements for map operations");
-                        res.map.put(t.contents.get(0), t.contents.get(1));
+                        res = res.with(t.contents.get(0), t.contents.get(1));
+                    }
+                    return new RMapStructure(res);
+                }
+                case Stream -> {
+                    // Runs the pipeline with the mapping fused into the same pass
+                    var res = new PersistentVector.Builder();
+                    var elements = Streams.elements(firstArg);
+                    while(elements.hasNext()) {
+                        res.add(Streams.call(args.get(1), elements.next(), env));
                     }
-                    return res;
+                    return new RListValue(res.build());
                 }
             }
 
 
-            return new RNullValue();
+            return RNullValue.NULL;
         })));
 
         // sum
@@ -195,162 +221,50 @@ public class Modules {
         module.functions.put("sum", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             expectArgs("sum", args.size(), 1, "sum (list)");
 
-            expect(args.get(0).getKind(), RuntimeValueType.List, module.moduleName + " at function accepts only two argument");
-            var list = (RListValue) args.get(0);
+            if(args.get(0).getKind() != RuntimeValueType.Stream) {
+                expect(args.get(0).getKind(), RuntimeValueType.List, module.moduleName + " at function accepts only two argument");
+            }
 
-            Double sum = (double) 0;
-            for(var e: list.contents) {
+            double sum = 0;
+            for(var elements = Streams.elements(args.get(0)); elements.hasNext(); ) {
+                var e = elements.next();
                 if(e.getKind() !=  RuntimeValueType.Number) {
-                    System.err.println("The array in Enum.sum should contain only numbers");
-                    System.exit(0);
+                    throw new DexError("The array in Enum.sum should contain only numbers");
                 }
 
                 RNumberValue n = (RNumberValue) e;
                 sum += n.number;
             }
 
-            return new RNumberValue(sum);
+            return RNumberValue.of(sum);
         })));
 
         // sort/1
         module.functions.put("sort", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argFormat = "InvalidArguments: Argument Format of Enum.sort/1 (enumerable)";
             expectArgs("Enum.sort", args.size(), 1, "(enumerable)");
-            expect(args.get(0).getKind(), RuntimeValueType.List, argFormat);
-
-            RListValue list = (RListValue) args.get(0);
-            RListValue newList = new RListValue();
-
-            // Precedence
-            // Number, Atom, Tuple, List, Map, String
-            int size = 0;
-            for(int i = 0; i < 5; i++) {
-                if(newList.contents.size() == list.contents.size()) break;
-
-                // Get the required list
-                switch (i) {
-                    case 0 -> {
-                        // Number
-                        // Get all the numbers from the given list
-                        ArrayList<RNumberValue> t = list.contents.stream()
-                                .filter(e -> e.getKind() == RuntimeValueType.Number)
-                                .map(e -> (RNumberValue) e)
-                                .sorted(Comparator.comparing(o -> o.number))
-                                .collect(Collectors.toCollection(ArrayList::new));
-                        newList.contents.addAll(t);
-                    }
-                    case 1 -> {
-                        // Atom
-                        // Get all the atoms from the list
-                        ArrayList<RAtomValue> t = list.contents.stream()
-                                .filter(e -> e.getKind() == RuntimeValueType.Atom)
-                                .map(e -> (RAtomValue) e)
-                                .sorted(Comparator.comparing(o -> o.value))
-                                .collect(Collectors.toCollection(ArrayList::new));
-                        newList.contents.addAll(t);
-                    }
-                    case 2 -> {
-                        // Tuples
-                        // Get all tuples
-                        ArrayList<RTupleValue> t = list.contents.stream()
-                                .filter(e -> e.getKind() == RuntimeValueType.Tuple)
-                                .map(e -> (RTupleValue) e)
-                                .sorted(Comparator.comparing(o -> o.contents.size())).
-                                collect(Collectors.toCollection(ArrayList::new));
-                        newList.contents.addAll(t);
-                    }
-                    case 3 -> {
-                        // List
-                        ArrayList<RListValue> t = list.contents.stream()
-                                .filter(e -> e.getKind() == RuntimeValueType.List)
-                                .map(e -> (RListValue) e)
-                                .sorted(Comparator.comparing(o -> o.contents.size())).
-                                collect(Collectors.toCollection(ArrayList::new));
-                        newList.contents.addAll(t);
-                    }
-                    case 4 -> {
-                        // String
-                        ArrayList<RStringValue> t = list.contents.stream()
-                                .filter(e -> e.getKind() == RuntimeValueType.String)
-                                .map(e -> (RStringValue) e)
-                                .sorted(Comparator.comparing(o -> o.value))
-                                .collect(Collectors.toCollection(ArrayList::new));
-                        newList.contents.addAll(t);
-                    }
-                }
+            if(args.get(0).getKind() != RuntimeValueType.Stream) {
+                expect(args.get(0).getKind(), RuntimeValueType.List, argFormat);
             }
 
-            return newList;
+            var contents = Streams.toVector(args.get(0));
+            // Precedence: Number, Atom, Tuple, List, Map, String
+            var sorted = ValueComparator.sorted(contents, ValueComparator.INSTANCE);
+            return new RListValue(PersistentVector.of(Arrays.asList(sorted)));
         })));
 
         // reverse/1
         module.functions.put("reverse", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argFormat = "InvalidArguments: Argument Format of Enum.reverse/1 (enumerable)";
             expectArgs("Enum.reverse", args.size(), 1, "(enumerable)");
-            expect(args.get(0).getKind(), RuntimeValueType.List, argFormat);
-
-            RListValue list = (RListValue) args.get(0);
-            RListValue newList = new RListValue();
-
-            // Precedence
-            // Number, Atom, Tuple, List, Map, String
-            for(int i = 4; i >= 0; i--) {
-                if(newList.contents.size() == list.contents.size()) break;
-
-                // Get the required list
-                switch (i) {
-                    case 0 -> {
-                        // Number
-                        // Get all the numbers from the given list
-                        ArrayList<RNumberValue> t = list.contents.stream()
-                                .filter(e -> e.getKind() == RuntimeValueType.Number)
-                                .map(e -> (RNumberValue) e)
-                                .sorted(Comparator.comparing(o -> ((RNumberValue) o).number).reversed())
-                                .collect(Collectors.toCollection(ArrayList::new));
-                        newList.contents.addAll(t);
-                    }
-                    case 1 -> {
-                        // Atom
-                        // Get all the atoms from the list
-                        ArrayList<RAtomValue> t = list.contents.stream()
-                                .filter(e -> e.getKind() == RuntimeValueType.Atom)
-                                .map(e -> (RAtomValue) e)
-                                .sorted(Comparator.comparing(o -> ((RAtomValue) o).value).reversed())
-                                .collect(Collectors.toCollection(ArrayList::new));
-                        newList.contents.addAll(t);
-                    }
-                    case 2 -> {
-                        // Tuples
-                        // Get all tuples
-                        ArrayList<RTupleValue> t = list.contents.stream()
-                                .filter(e -> e.getKind() == RuntimeValueType.Tuple)
-                                .map(e -> (RTupleValue) e)
-                                .sorted(Comparator.comparing(o -> ((RTupleValue) o).contents.size()).reversed()).
-                                collect(Collectors.toCollection(ArrayList::new));
-                        newList.contents.addAll(t);
-                    }
-                    case 3 -> {
-                        // List
-                        ArrayList<RListValue> t = list.contents.stream()
-                                .filter(e -> e.getKind() == RuntimeValueType.List)
-                                .map(e -> (RListValue) e)
-                                .sorted(Comparator.comparing(o -> ((RListValue) o).contents.size()).reversed())
-                                .collect(Collectors.toCollection(ArrayList::new));
-                        newList.contents.addAll(t);
-                    }
-                    case 4 -> {
-                        // String
-                        ArrayList<RStringValue> t = list.contents.stream()
-                                .filter(e -> e.getKind() == RuntimeValueType.String)
-                                .map(e -> (RStringValue) e)
-                                .sorted(Comparator.comparing(o -> ((RStringValue) o).value))
-                                .collect(Collectors.toCollection(ArrayList::new));
-                        newList.contents.addAll(t);
-                    }
-                }
+            if(args.get(0).getKind() != RuntimeValueType.Stream) {
+                expect(args.get(0).getKind(), RuntimeValueType.List, argFormat);
             }
 
-            return newList;
+            var contents = Streams.toVector(args.get(0));
+            // Same order as sort, descending
+            var sorted = ValueComparator.sorted(contents, ValueComparator.INSTANCE.reversed());
+            return new RListValue(PersistentVector.of(Arrays.asList(sorted)));
         })));
 
         // count
@@ -361,13 +275,18 @@ public class Modules {
 
             switch(args.get(0).getKind()) {
                 case List -> {
-                    return new RNumberValue((double) ((RListValue) args.get(0)).contents.size());
+                    return RNumberValue.of((double) ((RListValue) args.get(0)).contents.size());
                 }
                 case Map -> {
-                    return new RNumberValue((double) ((RMapStructure) args.get(0)).map.size());
+                    return RNumberValue.of((double) ((RMapStructure) args.get(0)).map.size());
+                }
+                case Stream -> {
+                    int count = 0;
+                    for(var elements = Streams.elements(args.get(0)); elements.hasNext(); elements.next()) count++;
+                    return RNumberValue.of(count);
                 }
             }
-            return new RNullValue();
+            return RNullValue.NULL;
         })));
 
         // each/2
@@ -387,9 +306,9 @@ public class Modules {
                     switch (f.getKind()) {
                         case AnonymousFn -> {
                             var fn = (RAnonymousFn) f;
-                            var innerScope = new Environment(fn.declarationEnv);
+                            var innerScope = new Environment(fn.declarationEnv, fn.frameSize);
                             list.contents.forEach(element -> {
-                                innerScope.declareVariable(((Identifier)fn.parameters.get(0)).symbol, element, false);
+                                innerScope.declareVariable((Identifier) fn.parameters.get(0), element);
                                 Interpreter.evaluate(fn.returnExpr, innerScope);
                             });
                         }
@@ -397,14 +316,10 @@ public class Modules {
                             var fn = (RFunctionValue) f;
                             if(fn.parameters.size() != 1)
                                 safeError("Enum.each The given function should have only one argument for lists");
-                            var innerScope = new Environment(fn.declarationEnv);
+                            var innerScope = new Environment(fn.declarationEnv, fn.frameSize);
                             list.contents.forEach(element -> {
-                                innerScope.declareVariable(((Identifier)fn.parameters.get(0)).symbol, element, false);
-                                fn.body.forEach(stmt -> {
-                                    var res = Interpreter.evaluate(stmt, innerScope);
-                                    if(res.getKind() == RuntimeValueType.Break || res.getKind() == RuntimeValueType.Continue)
-                                        safeError("Top level break/continue statements are not allowed");
-                                });
+                                innerScope.declareVariable((Identifier) fn.parameters.get(0), element);
+                                Interpreter.evaluateFunctionBody(fn.body, innerScope);
                             });
                         }
                     }
@@ -418,10 +333,10 @@ public class Modules {
                             var fn = (RAnonymousFn) f;
                             if(fn.parameters.size() != 2)
                                 safeError("Enum.each The given function should have two arguments for maps");
-                            var innerScope = new Environment(fn.declarationEnv);
+                            var innerScope = new Environment(fn.declarationEnv, fn.frameSize);
                             map.map.forEach((key, value) -> {
-                                innerScope.declareVariable(((Identifier)fn.parameters.get(0)).symbol, key, false);
-                                innerScope.declareVariable(((Identifier)fn.parameters.get(1)).symbol, value, false);
+                                innerScope.declareVariable((Identifier) fn.parameters.get(0), key);
+                                innerScope.declareVariable((Identifier) fn.parameters.get(1), value);
                                 Interpreter.evaluate(fn.returnExpr, innerScope);
                             });
                         }
@@ -429,22 +344,81 @@ public class Modules {
                             var fn = (RFunctionValue) f;
                             if(fn.parameters.size() != 2)
                                 safeError("Enum.each The given function should have two arguments for maps");
-                            var innerScope = new Environment(fn.declarationEnv);
+                            var innerScope = new Environment(fn.declarationEnv, fn.frameSize);
                             map.map.forEach((key, value) -> {
-                                innerScope.declareVariable(((Identifier)fn.parameters.get(0)).symbol, key, false);
-                                innerScope.declareVariable(((Identifier)fn.parameters.get(1)).symbol, value, false);
-                                fn.body.forEach(stmt -> {
-                                    var res = Interpreter.evaluate(stmt, innerScope);
-                                    if(res.getKind() == RuntimeValueType.Break || res.getKind() == RuntimeValueType.Continue)
-                                        safeError("Top level break/continue statements are not allowed");
-                                });
+                                innerScope.declareVariable((Identifier) fn.parameters.get(0), key);
+                                innerScope.declareVariable((Identifier) fn.parameters.get(1), value);
+                                Interpreter.evaluateFunctionBody(fn.body, innerScope);
                             });
                         }
                     }
                 }
+                case Stream -> Streams.elements(e).forEachRemaining(element -> Streams.call(f, element, env));
+            }
+
+            return RNullValue.NULL;
+        })));
+
+        // pmap(enumerable, fn)
+        // Returns: The same list as Enum.map, with the calls spread over all cores
+
+        module.functions.put("pmap", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Enum.pmap/2 (enumerable, fn)";
+            expectArgs("Enum.pmap", args.size(), 2, "(enumerable, fn)");
+            expectEnumerable(args.get(0), argFormat);
+            expectFunction(args.get(1), argFormat);
+            expectArity("Enum.pmap", args.get(1), 1);
+
+            var values = ParallelEnum.toArray(args.get(0));
+            return ParallelEnum.toList(ParallelEnum.map(values, args.get(1), env));
+        })));
+
+        // peach(enumerable, fn)
+        // Calls fn on every element in parallel, in no particular order
+
+        module.functions.put("peach", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Enum.peach/2 (enumerable, fn)";
+            expectArgs("Enum.peach", args.size(), 2, "(enumerable, fn)");
+            expectEnumerable(args.get(0), argFormat);
+            expectFunction(args.get(1), argFormat);
+            expectArity("Enum.peach", args.get(1), 1);
+
+            ParallelEnum.each(ParallelEnum.toArray(args.get(0)), args.get(1), env);
+            return RNullValue.NULL;
+        })));
+
+        // reduce(enumerable, acc, fn) or reduce(enumerable, identity, fn, combiner)
+        // fn is called as fn(element, acc). With a combiner the input is reduced in parallel chunks
+        // starting from identity, and the partial results are merged in order with combiner(left, right)
+
+        module.functions.put("reduce", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Enum.reduce (enumerable, acc, fn) or (enumerable, identity, fn, combiner)";
+            if(args.size() != 3 && args.size() != 4) {
+                safeError(argFormat);
+            }
+            expectEnumerable(args.get(0), argFormat);
+            expectFunction(args.get(2), argFormat);
+            expectArity("Enum.reduce", args.get(2), 2);
+            RuntimeValue combiner = null;
+            if(args.size() == 4) {
+                combiner = args.get(3);
+                expectFunction(combiner, argFormat);
+                expectArity("Enum.reduce", combiner, 2);
             }
 
-            return new RNullValue();
+            return ParallelEnum.reduce(ParallelEnum.toArray(args.get(0)), args.get(1), args.get(2), combiner, env);
+        })));
+
+        // to_list/1
+        // Returns: The elements as a list, runs a stream. Maps give {key, value} tuples
+
+        module.functions.put("to_list", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Enum.to_list/1 (enumerable)";
+            expectArgs("Enum.to_list", args.size(), 1, "(enumerable)");
+            expectEnumerable(args.get(0), argFormat);
+
+            if(args.get(0).getKind() == RuntimeValueType.List) return args.get(0);
+            return new RListValue(Streams.toVector(args.get(0)));
         })));
 
         scope.declareVariable("Enum", module, true);
@@ -456,8 +430,7 @@ public class Modules {
         module.functions.put("at", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argFormat = "InvalidArguments: Argument Format of Tuple.at/2 (tuple, index)";
             if(args.size() != 2) {
-                System.err.println(module.moduleName + " at function accepts only two argument");
-                System.exit(0);
+                throw new DexError(module.moduleName + " at function accepts only two argument");
             }
 
             expect(args.get(0).getKind(), RuntimeValueType.Tuple, argFormat);
@@ -468,15 +441,14 @@ public class Modules {
             var secondArg = (RNumberValue) args.get(1);
 
 
-            return firstArg.contents.get(secondArg.number.intValue());
+            return firstArg.contents.get(expectIndex(secondArg, firstArg.contents.size(), "Tuple.at/2"));
         })));
 
         // append/2
         module.functions.put("append", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argError = "InvalidArguments: Argument Format of Tuple.append/2 (tuple, element)";
             if(args.size() != 2) {
-                System.err.println(module.moduleName + " append function accepts only two argument");
-                System.exit(0);
+                throw new DexError(module.moduleName + " append function accepts only two argument");
             }
 
             expect(args.get(0).getKind(), RuntimeValueType.Tuple, argError);
@@ -489,8 +461,7 @@ public class Modules {
         module.functions.put("delete_at", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argError = "InvalidArguments: Argument Format of Tuple.delete_at/2 (tuple, index)";
             if(args.size() != 2) {
-                System.err.println(module.moduleName + " at function accepts only two argument");
-                System.exit(0);
+                throw new DexError(module.moduleName + " at function accepts only two argument");
             }
 
             expect(args.get(0).getKind(), RuntimeValueType.Tuple, argError);
@@ -499,7 +470,7 @@ public class Modules {
 
             var firstArg = (RTupleValue) args.get(0);
             var secondArg = (RNumberValue) args.get(1);
-            firstArg.contents.remove(secondArg.number.intValue());
+            firstArg.contents.remove(expectIndex(secondArg, firstArg.contents.size(), "Tuple.delete_at/2"));
             return firstArg;
         })));
 
@@ -507,8 +478,7 @@ public class Modules {
         module.functions.put("insert_at", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argError = "InvalidArguments: Argument Format of Tuple.insert_at/3 (tuple, index, value)";
             if(args.size() != 3) {
-                System.err.println(module.moduleName + " insert_at function accepts only two argument");
-                System.exit(0);
+                throw new DexError(module.moduleName + " insert_at function accepts only two argument");
             }
 
             expect(args.get(0).getKind(), RuntimeValueType.Tuple, argError);
@@ -519,10 +489,11 @@ public class Modules {
             var secondArg = (RNumberValue) args.get(1);
 
             if(secondArg.number >= firstArg.contents.size()) {
-                System.err.println("Invalid Argument:Size of the tuple is smaller than the given index. Tuple.insert_at/3");
+                env.io().err.println("Invalid Argument:Size of the tuple is smaller than the given index. Tuple.insert_at/3");
             }
-            System.out.println(secondArg.number.intValue() + " " + firstArg.contents.size());
-            firstArg.contents.add(secondArg.number.intValue(), args.get(2));
+            env.io().out.println((int) secondArg.number + " " + firstArg.contents.size());
+            // Inserting at the size appends
+            firstArg.contents.add(expectIndex(secondArg, firstArg.contents.size() + 1, "Tuple.insert_at/3"), args.get(2));
             return firstArg;
         })));
 
@@ -531,16 +502,13 @@ public class Modules {
             String argError = "InvalidArguments: Argument Format of Tuple.to_list/1 (tuple)";
 
             if(args.size() != 1) {
-                System.err.println(module.moduleName + " to_list function accepts only one argument");
-                System.exit(0);
+                throw new DexError(module.moduleName + " to_list function accepts only one argument");
             }
 
             expect(args.get(0).getKind(), RuntimeValueType.Tuple, argError);
             var firstArg = (RTupleValue) args.get(0);
 
-            RListValue list = new RListValue();
-            list.contents.addAll(firstArg.contents);
-            return list;
+            return new RListValue(PersistentVector.of(firstArg.contents));
         })));
 
 
@@ -553,8 +521,7 @@ public class Modules {
         module.functions.put("at", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argFormat = "InvalidArguments: Argument Format of List.at/2 (list, index)";
             if(args.size() != 2) {
-                System.err.println(module.moduleName + " at function accepts only two argument");
-                System.exit(0);
+                throw new DexError(module.moduleName + " at function accepts only two argument");
             }
 
             expect(args.get(0).getKind(), RuntimeValueType.List, argFormat);
@@ -565,27 +532,24 @@ public class Modules {
             var secondArg = (RNumberValue) args.get(1);
 
 
-            return firstArg.contents.get(secondArg.number.intValue());
+            return firstArg.contents.get(expectIndex(secondArg, firstArg.contents.size(), "List.at/2"));
         })));
 
         module.functions.put("append", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argError = "InvalidArguments: Argument Format of List.append/2 (list, element)";
             if(args.size() != 2) {
-                System.err.println(module.moduleName + " append function accepts only two argument");
-                System.exit(0);
+                throw new DexError(module.moduleName + " append function accepts only two argument");
             }
 
             expect(args.get(0).getKind(), RuntimeValueType.List, argError);
             var firstArg = (RListValue) args.get(0);
-            firstArg.contents.add(args.get(1));
-            return firstArg;
+            return new RListValue(firstArg.contents.append(args.get(1)));
         })));
 
         module.functions.put("delete_at", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argError = "InvalidArguments: Argument Format of List.delete_at/2 (list, index)";
             if(args.size() != 2) {
-                System.err.println(module.moduleName + " delete_at function accepts only two arguments");
-                System.exit(0);
+                throw new DexError(module.moduleName + " delete_at function accepts only two arguments");
             }
 
             expect(args.get(0).getKind(), RuntimeValueType.List, argError);
@@ -594,15 +558,13 @@ public class Modules {
 
             var firstArg = (RListValue) args.get(0);
             var secondArg = (RNumberValue) args.get(1);
-            firstArg.contents.remove(secondArg.number.intValue());
-            return firstArg;
+            return new RListValue(firstArg.contents.deleteAt(expectIndex(secondArg, firstArg.contents.size(), "List.delete_at/2")));
         })));
 
         module.functions.put("insert_at", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argError = "InvalidArguments: Argument Format of List.insert_at/3 (list, index, value)";
             if(args.size() != 3) {
-                System.err.println(module.moduleName + " insert_at function accepts three arguments");
-                System.exit(0);
+                throw new DexError(module.moduleName + " insert_at function accepts three arguments");
             }
 
             expect(args.get(0).getKind(), RuntimeValueType.List, argError);
@@ -613,32 +575,48 @@ public class Modules {
             var secondArg = (RNumberValue) args.get(1);
 
             if(secondArg.number >= firstArg.contents.size()) {
-                System.err.println("Invalid Argument:Size of the list is smaller than the given index. List.insert_at/3");
+                env.io().err.println("Invalid Argument:Size of the list is smaller than the given index. List.insert_at/3");
             }
-            System.out.println(secondArg.number.intValue() + " " + firstArg.contents.size());
-            firstArg.contents.add(secondArg.number.intValue(), args.get(2));
-            return firstArg;
+            env.io().out.println((int) secondArg.number + " " + firstArg.contents.size());
+            // Inserting at the size appends
+            return new RListValue(firstArg.contents.insertAt(expectIndex(secondArg, firstArg.contents.size() + 1, "List.insert_at/3"), args.get(2)));
+        })));
+
+        module.functions.put("replace_at", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argError = "InvalidArguments: Argument Format of List.replace_at/3 (list, index, value)";
+            if(args.size() != 3) {
+                throw new DexError(module.moduleName + " replace_at function accepts three arguments");
+            }
+
+            expect(args.get(0).getKind(), RuntimeValueType.List, argError);
+            expect(args.get(1).getKind(), RuntimeValueType.Number, argError);
+
+
+            var firstArg = (RListValue) args.get(0);
+            var secondArg = (RNumberValue) args.get(1);
+
+            if(secondArg.number >= firstArg.contents.size()) {
+                throw new DexError("Invalid Argument:Size of the list is smaller than the given index. List.replace_at/3");
+            }
+            return new RListValue(firstArg.contents.update(expectIndex(secondArg, firstArg.contents.size(), "List.replace_at/3"), args.get(2)));
         })));
 
         module.functions.put("pop", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
             String argError = "InvalidArguments: Argument Format of List.pop (list)";
             if(args.size() != 1) {
-                System.err.println(module.moduleName + " pop function accepts only one argument");
-                System.exit(0);
+                throw new DexError(module.moduleName + " pop function accepts only one argument");
             }
 
             expect(args.get(0).getKind(), RuntimeValueType.List, argError);
 
             var firstArg = (RListValue) args.get(0);
             if(firstArg.contents.size() == 0) {
-                System.err.println("List.pop: Index Error while pop");
-                System.exit(0);
+                throw new DexError("List.pop: Index Error while pop");
             }
 
             RTupleValue returnValue = new RTupleValue();
             returnValue.contents.add(firstArg.contents.get(firstArg.contents.size() - 1));
-            firstArg.contents.remove(firstArg.contents.size() - 1);
-            returnValue.contents.add(firstArg);
+            returnValue.contents.add(new RListValue(firstArg.contents.pop()));
 
             return returnValue;
         })));
@@ -657,7 +635,7 @@ public class Modules {
             RStringValue stringValue = (RStringValue) args.get(0);
 
 
-            return new RNumberValue((double) stringValue.value.length() - 2);
+            return RNumberValue.of((double) stringValue.toRawString().length());
         })));
 
         // split
@@ -668,12 +646,12 @@ public class Modules {
             expect(args.get(1).getKind(), RuntimeValueType.String, argFormat);
             RStringValue stringValue = (RStringValue) args.get(0);
             RStringValue delimiterValue = (RStringValue) args.get(1);
-            RListValue list = new RListValue();
-            var l = stringValue.value.split(delimiterValue.toRawString());
+            var list = new PersistentVector.Builder();
+            var l = stringValue.toRawString().split(delimiterValue.toRawString());
             for(var e: l)
-                list.contents.add(new RStringValue("\"" + e.replace("\"", "") + "\""));
+                list.add(new RStringValue(e));
 
-            return list;
+            return new RListValue(list.build());
         })));
 
         // to_number
@@ -686,10 +664,9 @@ public class Modules {
             try {
                 res = Double.parseDouble(arg.toRawString());
             } catch(Exception e) {
-                System.out.println("Expecting a string with number for input() function");
-                System.exit(0);
+                throw new DexError("Expecting a string with number for input() function");
             }
-            return new RNumberValue(res);
+            return RNumberValue.of(res);
         })));
 
         scope.declareVariable("String", module, true);
@@ -706,7 +683,7 @@ public class Modules {
             expect(args.get(1).getKind(), RuntimeValueType.Number, argFormat);
             var n1 = (RNumberValue) args.get(0);
             var n2 = (RNumberValue) args.get(1);
-            return new RNumberValue(Math.pow(n1.number, n2.number));
+            return RNumberValue.of(Math.pow(n1.number, n2.number));
         })));
 
         module.functions.put("floor_div", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
@@ -716,10 +693,180 @@ public class Modules {
             expect(args.get(1).getKind(), RuntimeValueType.Number, argFormat);
             var n1 = (RNumberValue) args.get(0);
             var n2 = (RNumberValue) args.get(1);
-            return new RNumberValue(Math.floor(n1.number / n2.number));
+            return RNumberValue.of(Math.floor(n1.number / n2.number));
         })));
         scope.declareVariable("Number", module, true);
     }
+
+    // Default timeout of Task.await and Task.await_many, in milliseconds
+    static final long TASK_TIMEOUT = 5000;
+
+    // Waits until the deadline given by System.nanoTime. A timeout or a failed task stops the script
+    static RuntimeValue awaitTask(RTaskValue task, long deadline, String functionName) {
+        try {
+            return task.result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException e) {
+            safeError("TaskTimeout: " + functionName + " " + task.toRawString() + " did not finish in time");
+        }
+        catch (ExecutionException e) {
+            var cause = e.getCause() instanceof DexError error ? error.getMessage() : e.getCause().toString();
+            safeError("TaskError: " + functionName + " " + task.toRawString() + " failed with " + cause);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            safeError("TaskError: " + functionName + " was interrupted");
+        }
+        return RNullValue.NULL;
+    }
+
+    static long taskDeadline(ArrayList<RuntimeValue> args, int index, String argFormat) {
+        if(args.size() <= index) return System.nanoTime() + TASK_TIMEOUT * 1_000_000;
+        expect(args.get(index).getKind(), RuntimeValueType.Number, argFormat);
+        return System.nanoTime() + (long) ((RNumberValue) args.get(index)).number * 1_000_000;
+    }
+
+    // Tasks run a function on their own process, so independent work overlaps instead of adding up
+    static void declareTaskModule(Environment scope) {
+        RModule module = new RModule("Task");
+
+        // async(fn, args...)
+        // Returns: A task running fn with the given arguments
+        module.functions.put("async", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Task.async (fn, args...)";
+            if(args.isEmpty()) safeError(argFormat);
+            expectFunction(args.get(0), argFormat);
+            var result = new CompletableFuture<RuntimeValue>();
+            var pid = Processes.spawn(args.get(0), new ArrayList<>(args.subList(1, args.size())), env, result);
+            return new RTaskValue(pid, result);
+        })));
+
+        // await(task) or await(task, timeout)
+        // Returns: The value returned by the task's function. Waits 5000 milliseconds by default
+        module.functions.put("await", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Task.await (task) or (task, timeout)";
+            if(args.size() != 1 && args.size() != 2) safeError(argFormat);
+            expect(args.get(0).getKind(), RuntimeValueType.Task, argFormat);
+            return awaitTask((RTaskValue) args.get(0), taskDeadline(args, 1, argFormat), "Task.await");
+        })));
+
+        // await_many(tasks) or await_many(tasks, timeout)
+        // Returns: The results in the order of the tasks. The timeout covers all of them
+        module.functions.put("await_many", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Task.await_many (tasks) or (tasks, timeout)";
+            if(args.size() != 1 && args.size() != 2) safeError(argFormat);
+            expect(args.get(0).getKind(), RuntimeValueType.List, argFormat);
+            long deadline = taskDeadline(args, 1, argFormat);
+            var results = new PersistentVector.Builder();
+            for(var task: ((RListValue) args.get(0)).contents) {
+                expect(task.getKind(), RuntimeValueType.Task, argFormat);
+                results.add(awaitTask((RTaskValue) task, deadline, "Task.await_many"));
+            }
+            return new RListValue(results.build());
+        })));
+
+        // async_stream(enumerable, fn) or async_stream(enumerable, fn, max_concurrency)
+        // Returns: A stream of {:ok, result} in input order. Runs one task per available core by default,
+        // each result is awaited for up to 5000 milliseconds like Task.await
+        module.functions.put("async_stream", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Task.async_stream (enumerable, fn) or (enumerable, fn, max_concurrency)";
+            if(args.size() != 2 && args.size() != 3) safeError(argFormat);
+            expectEnumerable(args.get(0), argFormat);
+            expectFunction(args.get(1), argFormat);
+            expectArity("Task.async_stream", args.get(1), 1);
+            int maxConcurrency = Runtime.getRuntime().availableProcessors();
+            if(args.size() == 3) {
+                expect(args.get(2).getKind(), RuntimeValueType.Number, argFormat);
+                maxConcurrency = (int) ((RNumberValue) args.get(2)).number;
+                if(maxConcurrency < 1) safeError("Task.async_stream max_concurrency should be at least 1");
+            }
+            return Streams.asyncMap(args.get(0), args.get(1), maxConcurrency, env);
+        })));
+
+        scope.declareVariable("Task", module, true);
+    }
+
+    // Every Stream function returns a new lazy stream, the work happens when an Enum function consumes it
+    static void declareStreamModule(Environment scope) {
+        RModule module = new RModule("Stream");
+
+        // map(enumerable, fn)
+        module.functions.put("map", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Stream.map/2 (enumerable, fn)";
+            expectArgs("Stream.map", args.size(), 2, "(enumerable, fn)");
+            expectEnumerable(args.get(0), argFormat);
+            expectFunction(args.get(1), argFormat);
+            return Streams.map(args.get(0), args.get(1), env);
+        })));
+
+        // filter(enumerable, fn)
+        // Keeps the elements for which fn doesn't return false
+        module.functions.put("filter", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Stream.filter/2 (enumerable, fn)";
+            expectArgs("Stream.filter", args.size(), 2, "(enumerable, fn)");
+            expectEnumerable(args.get(0), argFormat);
+            expectFunction(args.get(1), argFormat);
+            return Streams.filter(args.get(0), args.get(1), true, env);
+        })));
+
+        // reject(enumerable, fn)
+        // Drops the elements for which fn doesn't return false
+        module.functions.put("reject", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Stream.reject/2 (enumerable, fn)";
+            expectArgs("Stream.reject", args.size(), 2, "(enumerable, fn)");
+            expectEnumerable(args.get(0), argFormat);
+            expectFunction(args.get(1), argFormat);
+            return Streams.filter(args.get(0), args.get(1), false, env);
+        })));
+
+        // take(enumerable, count)
+        // Stops pulling from the enumerable after count elements
+        module.functions.put("take", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Stream.take/2 (enumerable, count)";
+            expectArgs("Stream.take", args.size(), 2, "(enumerable, count)");
+            expectEnumerable(args.get(0), argFormat);
+            expect(args.get(1).getKind(), RuntimeValueType.Number, argFormat);
+            return Streams.take(args.get(0), (int) ((RNumberValue) args.get(1)).number);
+        })));
+
+        // drop(enumerable, count)
+        module.functions.put("drop", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Stream.drop/2 (enumerable, count)";
+            expectArgs("Stream.drop", args.size(), 2, "(enumerable, count)");
+            expectEnumerable(args.get(0), argFormat);
+            expect(args.get(1).getKind(), RuntimeValueType.Number, argFormat);
+            return Streams.drop(args.get(0), (int) ((RNumberValue) args.get(1)).number);
+        })));
+
+        // take_while(enumerable, fn)
+        module.functions.put("take_while", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Stream.take_while/2 (enumerable, fn)";
+            expectArgs("Stream.take_while", args.size(), 2, "(enumerable, fn)");
+            expectEnumerable(args.get(0), argFormat);
+            expectFunction(args.get(1), argFormat);
+            return Streams.takeWhile(args.get(0), args.get(1), env);
+        })));
+
+        // with_index(enumerable)
+        // Returns: A stream of {element, index} tuples
+        module.functions.put("with_index", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Stream.with_index/1 (enumerable)";
+            expectArgs("Stream.with_index", args.size(), 1, "(enumerable)");
+            expectEnumerable(args.get(0), argFormat);
+            return Streams.withIndex(args.get(0));
+        })));
+
+        // iterate(start, fn)
+        // Returns: The infinite stream start, fn(start), fn(fn(start)), ...
+        module.functions.put("iterate", RNativeFunction.MAKE_NATIVE_FN(((args, env) -> {
+            String argFormat = "InvalidArguments: Argument Format of Stream.iterate/2 (start, fn)";
+            expectArgs("Stream.iterate", args.size(), 2, "(start, fn)");
+            expectFunction(args.get(1), argFormat);
+            return Streams.iterate(args.get(0), args.get(1), env);
+        })));
+
+        scope.declareVariable("Stream", module, true);
+    }
      static void declareAllModules(Environment env) {
         declareTupleModule(env);
         declareEnumModule(env);
@@ -727,5 +874,7 @@ public class Modules {
         declareMapModule(env);
         declareStringModule(env);
         declareNumberModule(env);
+        declareStreamModule(env);
+        declareTaskModule(env);
     }
 }
@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Fork join versions of the Enum functions. The input is split into ranges that the common pool
+// steals and runs on all cores. A leaf range gets its own Worker, so the Environment an anonymous
+// function runs in is never shared between threads
+final class ParallelEnum {
+
+    private ParallelEnum() {}
+
+    // Ranges per worker thread, more than one so a slow range doesn't leave the other cores idle
+    private static final int RANGES_PER_THREAD = 8;
+
+    private static int grain(int size) {
+        return Math.max(1, size / (ForkJoinPool.getCommonPoolParallelism() * RANGES_PER_THREAD));
+    }
+
+    // Calls one function value from a single thread. An anonymous function reuses one scope for every
+    // call like Enum.map does, anything else goes through Interpreter.callFunction
+    private static final class Worker {
+        private final RuntimeValue fn;
+        private final Environment env;
+        private final Environment scope;
+
+        Worker(RuntimeValue fn, Environment env) {
+            this.fn = fn;
+            this.env = env;
+            this.scope = fn instanceof RAnonymousFn anonymousFn ? new Environment(anonymousFn.declarationEnv, anonymousFn.frameSize) : null;
+        }
+
+        RuntimeValue call(RuntimeValue first, RuntimeValue second) {
+            if(scope != null) {
+                var anonymousFn = (RAnonymousFn) fn;
+                scope.declareVariable((Identifier) anonymousFn.parameters.get(0), first);
+                if(second != null) scope.declareVariable((Identifier) anonymousFn.parameters.get(1), second);
+                return Interpreter.evaluate(anonymousFn.returnExpr, scope);
+            }
+            var args = new ArrayList<RuntimeValue>(2);
+            args.add(first);
+            if(second != null) args.add(second);
+            return Interpreter.callFunction(fn, args, env);
+        }
+    }
+
+    // Results in the same order as the input
+    static RuntimeValue[] map(RuntimeValue[] values, RuntimeValue fn, Environment env) {
+        var results = new RuntimeValue[values.length];
+        ForkJoinPool.commonPool().invoke(new MapTask(values, results, fn, env, 0, values.length, grain(values.length)));
+        return results;
+    }
+
+    private static final class MapTask extends RecursiveTask<Void> {
+        private static final long serialVersionUID = 1L;
+
+        // Tasks only run in the pool, they are never serialized
+        private final transient RuntimeValue[] values;
+        private final transient RuntimeValue[] results;
+        private final transient RuntimeValue fn;
+        private final transient Environment env;
+        private final int from, to, grain;
+
+        MapTask(RuntimeValue[] values, RuntimeValue[] results, RuntimeValue fn, Environment env, int from, int to, int grain) {
+            this.values = values;
+            this.results = results;
+            this.fn = fn;
+            this.env = env;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Void compute() {
+            if(to - from <= grain) {
+                // results is null for peach, the calls only run for their effects
+                var worker = new Worker(fn, env);
+                for(int i = from; i < to; i++) {
+                    var result = worker.call(values[i], null);
+                    if(results != null) results[i] = result;
+                }
+                return null;
+            }
+            int middle = (from + to) >>> 1;
+            var left = new MapTask(values, results, fn, env, from, middle, grain);
+            left.fork();
+            new MapTask(values, results, fn, env, middle, to, grain).compute();
+            left.join();
+            return null;
+        }
+    }
+
+    static void each(RuntimeValue[] values, RuntimeValue fn, Environment env) {
+        ForkJoinPool.commonPool().invoke(new MapTask(values, null, fn, env, 0, values.length, grain(values.length)));
+    }
+
+    // Every range folds its elements into identity with fn(element, acc), then neighbouring partial
+    // results are merged left to right with combiner(left, right). Matches a serial reduce when identity
+    // is neutral for combiner and combiner is associative
+    // Without a combiner the whole input is one range, folded on the calling thread
+    static RuntimeValue reduce(RuntimeValue[] values, RuntimeValue identity, RuntimeValue fn, RuntimeValue combiner, Environment env) {
+        if(combiner == null) {
+            return new ReduceTask(values, identity, fn, null, env, 0, values.length, Math.max(1, values.length)).compute();
+        }
+        return ForkJoinPool.commonPool().invoke(new ReduceTask(values, identity, fn, combiner, env, 0, values.length, grain(values.length)));
+    }
+
+    private static final class ReduceTask extends RecursiveTask<RuntimeValue> {
+        private static final long serialVersionUID = 1L;
+
+        // Tasks only run in the pool, they are never serialized
+        private final transient RuntimeValue[] values;
+        private final transient RuntimeValue identity;
+        private final transient RuntimeValue fn;
+        private final transient RuntimeValue combiner;
+        private final transient Environment env;
+        private final int from, to, grain;
+
+        ReduceTask(RuntimeValue[] values, RuntimeValue identity, RuntimeValue fn, RuntimeValue combiner, Environment env, int from, int to, int grain) {
+            this.values = values;
+            this.identity = identity;
+            this.fn = fn;
+            this.combiner = combiner;
+            this.env = env;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected RuntimeValue compute() {
+            if(to - from <= grain) {
+                var worker = new Worker(fn, env);
+                var acc = identity;
+                for(int i = from; i < to; i++) {
+                    acc = worker.call(values[i], acc);
+                }
+                return acc;
+            }
+            int middle = (from + to) >>> 1;
+            var left = new ReduceTask(values, identity, fn, combiner, env, from, middle, grain);
+            left.fork();
+            var right = new ReduceTask(values, identity, fn, combiner, env, middle, to, grain).compute();
+            return new Worker(combiner, env).call(left.join(), right);
+        }
+    }
+
+    static RuntimeValue[] toArray(RuntimeValue enumerable) {
+        var contents = Streams.toVector(enumerable);
+        return contents.toArray(new RuntimeValue[0]);
+    }
+
+    static RListValue toList(RuntimeValue[] values) {
+        return new RListValue(PersistentVector.of(Arrays.asList(values)));
+    }
+}
@@ -1,30 +1,47 @@
 import java.util.ArrayList;
 import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class Parser {
-    private ArrayList<Token> tokens = new ArrayList<>();
+    // Tokens are pulled from the lexer on demand into a small ring buffer
+    private static final int LOOKAHEAD = 4;
+
+    private Lexer lexer;
+    private final Token[] lookahead = new Token[LOOKAHEAD];
+
+    // Position of the current token in the ring buffer and the number of buffered tokens
+    private int cursor = 0;
+    private int buffered = 0;
 
     private boolean not_eof() {
-        return this.tokens.get(0).type != TokenType.EOF;
+        return this.at().type != TokenType.EOF;
+    }
+
+    private Token peek(int offset) {
+        while(this.buffered <= offset) {
+            this.lookahead[(this.cursor + this.buffered) % LOOKAHEAD] = this.lexer.nextToken();
+            this.buffered++;
+        }
+        return this.lookahead[(this.cursor + offset) % LOOKAHEAD];
     }
 
     private Token at() {
-        return this.tokens.get(0);
+        return this.peek(0);
     }
 
     private Token eat() {
         Token prev = this.at();
-        tokens.remove(0);
+        // Stay on EOF once it is reached
+        if(prev.type != TokenType.EOF) {
+            this.cursor = (this.cursor + 1) % LOOKAHEAD;
+            this.buffered--;
+        }
         return prev;
     }
 
     private void expect(TokenType type, String message) {
         Token prev = this.eat();
         if(prev == null || prev.type != type) {
-            System.err.println("Parser error: " + message + " " + prev + " - Expecting: " + type);
-            System.exit(0);
+            throw new DexError("Parser error: " + message + " " + prev + " - Expecting: " + type);
         }
     }
 
@@ -36,9 +53,10 @@ public class Parser {
         return op.equals("and") || op.equals("or") || op.equals("not");
     }
 
-    public Program produceAst(String code) {
-        Lexer lexer = new Lexer(code);
-        this.tokens = (ArrayList<Token>) lexer.tokenize();
+    public Program produceAst(CharSequence code) {
+        this.lexer = new Lexer(code);
+        this.cursor = 0;
+        this.buffered = 0;
         Program program = new Program();
         program.body = new ArrayList<Stmt>();
         while(not_eof()) {
@@ -292,7 +310,7 @@ public class Parser {
             var binExp = new BinaryExpr();
             binExp.left = left;
             binExp.right = right;
-            binExp.op = op;
+            binExp.op = Operator.fromSymbol(op);
             left = binExp;
         }
         return left;
@@ -306,7 +324,7 @@ public class Parser {
             var binExp = new BinaryExpr();
             binExp.left = left;
             binExp.right = right;
-            binExp.op = op;
+            binExp.op = Operator.fromSymbol(op);
             left = binExp;
         }
         return left;
@@ -320,7 +338,7 @@ public class Parser {
             var binExp = new BinaryExpr();
             binExp.left = left;
             binExp.right = right;
-            binExp.op = op;
+            binExp.op = Operator.fromSymbol(op);
             left = binExp;
         }
         return left;
@@ -334,7 +352,7 @@ public class Parser {
             var binExp = new BinaryExpr();
             binExp.left = left;
             binExp.right = right;
-            binExp.op = op;
+            binExp.op = Operator.fromSymbol(op);
             left = binExp;
         }
         return left;
@@ -371,8 +389,7 @@ public class Parser {
                 computed = false;
                 property = this.parseUnaryExpr();
                 if (property.getKind() != AstNode.Identifier) {
-                    System.err.println("Cannot use dot operator without right hand side being a identifier");
-                    System.exit(0);
+                    throw new DexError("Cannot use dot operator without right hand side being a identifier");
                 }
             }
             else if(op.type == TokenType.OpenSquare) {
@@ -418,17 +435,23 @@ public class Parser {
         return args;
     }
 
+    // Splits the string into literal chunks and #{...} expressions once, at parse time
     private StringLiteral parseStringLiteral(String val) {
         StringLiteral res = new StringLiteral(val);
-        Parser tempParser = new Parser();
-        Pattern pattern = Pattern.compile("#\\{(.*?)}");
-        Matcher matcher = pattern.matcher(val.toString());
-        while(matcher.find()) {
-            res.addInterpolatedString(matcher.group(1));
-            var finalVal = tempParser.produceAst(matcher.group(1)).body;
+        int chunkStart = 0;
+        int open = val.indexOf("#{");
+        while(open != -1) {
+            int close = val.indexOf('}', open + 2);
+            if(close == -1) break;
+
+            res.addChunk(val.substring(chunkStart, open));
+            var finalVal = new Parser().produceAst(val.substring(open + 2, close)).body;
             res.addInterpolatedValue(finalVal.isEmpty() ? new Identifier("null") : finalVal.get(0));
 
+            chunkStart = close + 1;
+            open = val.indexOf("#{", chunkStart);
         }
+        res.addChunk(val.substring(chunkStart));
         return res;
     }
 
@@ -457,11 +480,9 @@ public class Parser {
                 return value;
             }
             default -> {
-                System.err.println("Unexpected token found during parsing! " + this.at());
-                System.exit(0);
+                throw new DexError("Unexpected token found during parsing! " + this.at());
             }
         }
-        return new BinaryExpr();
     }
 }
 
@@ -0,0 +1,366 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+// Immutable hash array mapped trie backing RMapStructure. Every level consumes 5 bits of the key hash,
+// a node keeps a 32 bit bitmap of the slots in use and a packed array holding only those children,
+// so put and delete copy one small array per level, O(log32 n). Entries cache the hash of their key,
+// lookups compare it before calling equals and iteration or splitting a slot never calls hashCode again.
+// Keys whose hashes are fully equal share a collision node.
+// Exposes itself as a read-only java.util.Map for the code that only reads maps
+final class PersistentMap extends AbstractMap<RuntimeValue, RuntimeValue> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    public static final PersistentMap EMPTY = new PersistentMap(BitmapNode.EMPTY, 0);
+
+    private final BitmapNode root;
+    private final int size;
+
+    private PersistentMap(BitmapNode root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    // Spreads the high bits into the low ones used by the first levels. Reversible, so the
+    // original hashCode can be recovered from the cached value
+    private static int hash(Object key) {
+        int h = Objects.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public RuntimeValue get(Object key) {
+        var entry = find(key);
+        return entry == null ? null : entry.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    private Entry find(Object key) {
+        int hash = hash(key);
+        Object node = root;
+        for(int shift = 0; ; shift += BITS) {
+            if(node instanceof BitmapNode bitmapNode) {
+                int bit = bit(hash, shift);
+                if((bitmapNode.bitmap & bit) == 0) return null;
+                node = bitmapNode.children[bitmapNode.index(bit)];
+            }
+            else if(node instanceof Entry entry) {
+                return entry.matches(hash, key) ? entry : null;
+            }
+            else {
+                return ((CollisionNode) node).find(hash, key);
+            }
+        }
+    }
+
+    // Returns a map with the key bound to the value, replacing any previous binding
+    public PersistentMap with(RuntimeValue key, RuntimeValue value) {
+        var added = new boolean[1];
+        var newRoot = (BitmapNode) put(root, new Entry(hash(key), key, value), 0, added);
+        if(newRoot == root) return this;
+        return new PersistentMap(newRoot, added[0] ? size + 1 : size);
+    }
+
+    private static Object put(Object node, Entry entry, int shift, boolean[] added) {
+        if(node instanceof BitmapNode bitmapNode) {
+            int bit = bit(entry.hash, shift);
+            int index = bitmapNode.index(bit);
+            if((bitmapNode.bitmap & bit) == 0) {
+                added[0] = true;
+                var children = new Object[bitmapNode.children.length + 1];
+                System.arraycopy(bitmapNode.children, 0, children, 0, index);
+                children[index] = entry;
+                System.arraycopy(bitmapNode.children, index, children, index + 1, bitmapNode.children.length - index);
+                return new BitmapNode(bitmapNode.bitmap | bit, children);
+            }
+            var child = bitmapNode.children[index];
+            var newChild = put(child, entry, shift + BITS, added);
+            if(newChild == child) return bitmapNode;
+            var children = bitmapNode.children.clone();
+            children[index] = newChild;
+            return new BitmapNode(bitmapNode.bitmap, children);
+        }
+        if(node instanceof Entry existing) {
+            if(existing.matches(entry.hash, entry.key)) {
+                return existing.value == entry.value ? existing : entry;
+            }
+            added[0] = true;
+            return merge(existing, entry, shift);
+        }
+
+        var collision = (CollisionNode) node;
+        if(collision.hash != entry.hash) {
+            // Push the collision node one level down and retry next to it
+            var parent = new BitmapNode(bit(collision.hash, shift), new Object[] { collision });
+            return put(parent, entry, shift, added);
+        }
+        return collision.put(entry, added);
+    }
+
+    // Builds the smallest subtree holding two entries that landed on the same slot
+    private static Object merge(Entry first, Entry second, int shift) {
+        if(first.hash == second.hash) {
+            return new CollisionNode(first.hash, new Entry[] { first, second });
+        }
+        int firstBit = bit(first.hash, shift);
+        int secondBit = bit(second.hash, shift);
+        if(firstBit == secondBit) {
+            return new BitmapNode(firstBit, new Object[] { merge(first, second, shift + BITS) });
+        }
+        var children = Integer.compareUnsigned(firstBit, secondBit) < 0 ? new Object[] { first, second } : new Object[] { second, first };
+        return new BitmapNode(firstBit | secondBit, children);
+    }
+
+    // Returns a map without the key, or this map if the key isn't present
+    public PersistentMap without(RuntimeValue key) {
+        var newRoot = delete(root, hash(key), key, 0);
+        if(newRoot == root) return this;
+        if(newRoot == null) return EMPTY;
+        if(!(newRoot instanceof BitmapNode)) {
+            // The root collapsed to a single entry, the root has to stay a bitmap node
+            int hash = newRoot instanceof Entry entry ? entry.hash : ((CollisionNode) newRoot).hash;
+            newRoot = new BitmapNode(bit(hash, 0), new Object[] { newRoot });
+        }
+        return new PersistentMap((BitmapNode) newRoot, size - 1);
+    }
+
+    // Returns the node unchanged when the key is missing, null when the node becomes empty
+    private static Object delete(Object node, int hash, Object key, int shift) {
+        if(node instanceof BitmapNode bitmapNode) {
+            int bit = bit(hash, shift);
+            if((bitmapNode.bitmap & bit) == 0) return bitmapNode;
+            int index = bitmapNode.index(bit);
+            var child = bitmapNode.children[index];
+            var newChild = delete(child, hash, key, shift + BITS);
+            if(newChild == child) return bitmapNode;
+            if(newChild == null) {
+                if(bitmapNode.bitmap == bit) return null;
+                var children = new Object[bitmapNode.children.length - 1];
+                System.arraycopy(bitmapNode.children, 0, children, 0, index);
+                System.arraycopy(bitmapNode.children, index + 1, children, index, children.length - index);
+                if(children.length == 1 && children[0] instanceof Entry entry) return entry;
+                return new BitmapNode(bitmapNode.bitmap ^ bit, children);
+            }
+            // A lone entry moves up so lookups don't walk through single child nodes
+            if(bitmapNode.children.length == 1 && newChild instanceof Entry) return newChild;
+            var children = bitmapNode.children.clone();
+            children[index] = newChild;
+            return new BitmapNode(bitmapNode.bitmap, children);
+        }
+        if(node instanceof Entry entry) {
+            return entry.matches(hash, key) ? null : entry;
+        }
+        return ((CollisionNode) node).delete(hash, key);
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super RuntimeValue, ? super RuntimeValue> action) {
+        forEach(root, action);
+    }
+
+    private static void forEach(Object node, BiConsumer<? super RuntimeValue, ? super RuntimeValue> action) {
+        if(node instanceof Entry entry) {
+            action.accept(entry.key, entry.value);
+        }
+        else if(node instanceof BitmapNode bitmapNode) {
+            for(var child: bitmapNode.children) forEach(child, action);
+        }
+        else {
+            for(var entry: ((CollisionNode) node).entries) action.accept(entry.key, entry.value);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<RuntimeValue, RuntimeValue>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<RuntimeValue, RuntimeValue>> iterator() {
+                return new EntryIterator(root);
+            }
+        };
+    }
+
+    // Depth first walk over the trie keeping the pending child arrays on a stack
+    private static final class EntryIterator implements Iterator<Map.Entry<RuntimeValue, RuntimeValue>> {
+        private final ArrayDeque<Object[]> arrays = new ArrayDeque<>();
+        private final ArrayDeque<Integer> positions = new ArrayDeque<>();
+        private Entry next;
+
+        EntryIterator(BitmapNode root) {
+            arrays.push(root.children);
+            positions.push(0);
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while(!arrays.isEmpty()) {
+                Object[] children = arrays.peek();
+                int position = positions.pop();
+                if(position == children.length) {
+                    arrays.pop();
+                    continue;
+                }
+                positions.push(position + 1);
+                var child = children[position];
+                if(child instanceof Entry entry) {
+                    next = entry;
+                    return;
+                }
+                arrays.push(child instanceof BitmapNode bitmapNode ? bitmapNode.children : ((CollisionNode) child).entries);
+                positions.push(0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<RuntimeValue, RuntimeValue> next() {
+            if(next == null) throw new NoSuchElementException();
+            var entry = next;
+            advance();
+            return entry;
+        }
+    }
+
+    // Key value pair with the spread hash of its key
+    static final class Entry implements Map.Entry<RuntimeValue, RuntimeValue> {
+        final int hash;
+        final RuntimeValue key;
+        final RuntimeValue value;
+
+        Entry(int hash, RuntimeValue key, RuntimeValue value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        boolean matches(int hash, Object key) {
+            return this.hash == hash && (this.key == key || Objects.equals(this.key, key));
+        }
+
+        @Override
+        public RuntimeValue getKey() {
+            return key;
+        }
+
+        @Override
+        public RuntimeValue getValue() {
+            return value;
+        }
+
+        @Override
+        public RuntimeValue setValue(RuntimeValue value) {
+            throw new UnsupportedOperationException("Maps are immutable");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Map.Entry<?, ?> e && Objects.equals(key, e.getKey()) && Objects.equals(value, e.getValue());
+        }
+
+        // Same as any Map.Entry, with the key hash undone from the cached value instead of recomputed
+        @Override
+        public int hashCode() {
+            return (hash ^ (hash >>> 16)) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    private static final class BitmapNode {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        // Entry, BitmapNode or CollisionNode for every bit set, in bit order
+        final Object[] children;
+
+        BitmapNode(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    private static final class CollisionNode {
+        final int hash;
+        final Entry[] entries;
+
+        CollisionNode(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        Entry find(int hash, Object key) {
+            if(hash != this.hash) return null;
+            for(var entry: entries) {
+                if(entry.matches(hash, key)) return entry;
+            }
+            return null;
+        }
+
+        Object put(Entry entry, boolean[] added) {
+            for(int i = 0; i < entries.length; i++) {
+                if(entries[i].matches(entry.hash, entry.key)) {
+                    if(entries[i].value == entry.value) return this;
+                    var copy = entries.clone();
+                    copy[i] = entry;
+                    return new CollisionNode(hash, copy);
+                }
+            }
+            added[0] = true;
+            var copy = Arrays.copyOf(entries, entries.length + 1);
+            copy[entries.length] = entry;
+            return new CollisionNode(hash, copy);
+        }
+
+        Object delete(int hash, Object key) {
+            if(hash != this.hash) return this;
+            for(int i = 0; i < entries.length; i++) {
+                if(entries[i].matches(hash, key)) {
+                    if(entries.length == 2) return entries[1 - i];
+                    var copy = new Entry[entries.length - 1];
+                    System.arraycopy(entries, 0, copy, 0, i);
+                    System.arraycopy(entries, i + 1, copy, i, copy.length - i);
+                    return new CollisionNode(hash, copy);
+                }
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+// Immutable vector backing RListValue. A 32-way trie holds the elements in full leaves of 32,
+// the last partial leaf is kept aside as the tail. Updates copy only the path to the changed leaf
+// and share everything else, so append, update and pop cost O(log32 n), which is effectively constant.
+// Exposes itself as a read-only java.util.List for the code that only reads lists
+final class PersistentVector extends AbstractList<RuntimeValue> implements RandomAccess {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final Object[] EMPTY_ROOT = new Object[WIDTH];
+    public static final PersistentVector EMPTY = new PersistentVector(0, BITS, EMPTY_ROOT, new Object[0]);
+
+    private final int size;
+
+    // Levels below the root times BITS
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    public static PersistentVector of(Iterable<? extends RuntimeValue> values) {
+        var builder = new Builder();
+        for(var value: values) {
+            builder.add(value);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Index of the first element stored in the tail
+    private int tailOffset() {
+        return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
+    }
+
+    // Leaf holding the element at the index
+    private Object[] leafFor(int index) {
+        if(index >= tailOffset()) return tail;
+        Object[] node = root;
+        for(int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node;
+    }
+
+    @Override
+    public RuntimeValue get(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return (RuntimeValue) leafFor(index)[index & MASK];
+    }
+
+    // Returns a vector with the value added at the end
+    public PersistentVector append(RuntimeValue value) {
+        int tailSize = size - tailOffset();
+        if(tailSize < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tailSize + 1);
+            newTail[tailSize] = value;
+            return new PersistentVector(size + 1, shift, root, newTail);
+        }
+
+        // The tail is full, move it into the trie and start a new one
+        Object[] newRoot;
+        int newShift = shift;
+        if((size >>> BITS) > (1 << shift)) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        }
+        else {
+            newRoot = pushTail(size, shift, root, tail);
+        }
+        return new PersistentVector(size + 1, newShift, newRoot, new Object[] { value });
+    }
+
+    private static Object[] pushTail(int size, int level, Object[] parent, Object[] tailNode) {
+        int index = ((size - 1) >>> level) & MASK;
+        Object[] node = parent.clone();
+        if(level == BITS) {
+            node[index] = tailNode;
+        }
+        else {
+            var child = (Object[]) parent[index];
+            node[index] = child != null ? pushTail(size, level - BITS, child, tailNode) : newPath(level - BITS, tailNode);
+        }
+        return node;
+    }
+
+    private static Object[] newPath(int level, Object[] leaf) {
+        if(level == 0) return leaf;
+        Object[] node = new Object[WIDTH];
+        node[0] = newPath(level - BITS, leaf);
+        return node;
+    }
+
+    // Returns a vector with the element at the index replaced. An index equal to the size appends
+    public PersistentVector update(int index, RuntimeValue value) {
+        if(index == size) return this.append(value);
+        if(index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        if(index >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[index & MASK] = value;
+            return new PersistentVector(size, shift, root, newTail);
+        }
+        return new PersistentVector(size, shift, update(shift, root, index, value), tail);
+    }
+
+    private static Object[] update(int level, Object[] node, int index, RuntimeValue value) {
+        Object[] copy = node.clone();
+        if(level == 0) {
+            copy[index & MASK] = value;
+        }
+        else {
+            int child = (index >>> level) & MASK;
+            copy[child] = update(level - BITS, (Object[]) node[child], index, value);
+        }
+        return copy;
+    }
+
+    // Returns a vector without the last element
+    public PersistentVector pop() {
+        if(size == 0) throw new IllegalStateException("Can't pop an empty vector");
+        if(size == 1) return EMPTY;
+
+        int tailSize = size - tailOffset();
+        if(tailSize > 1) {
+            return new PersistentVector(size - 1, shift, root, Arrays.copyOf(tail, tailSize - 1));
+        }
+
+        // The tail becomes empty, the last leaf of the trie takes its place
+        Object[] newTail = leafFor(size - 2);
+        Object[] newRoot = popTail(size, shift, root);
+        int newShift = shift;
+        if(newRoot == null) {
+            newRoot = EMPTY_ROOT;
+        }
+        if(shift > BITS && newRoot[1] == null) {
+            newRoot = (Object[]) newRoot[0];
+            newShift -= BITS;
+        }
+        return new PersistentVector(size - 1, newShift, newRoot, newTail);
+    }
+
+    private static Object[] popTail(int size, int level, Object[] node) {
+        int index = ((size - 2) >>> level) & MASK;
+        if(level > BITS) {
+            var child = popTail(size, level - BITS, (Object[]) node[index]);
+            if(child == null && index == 0) return null;
+            Object[] copy = node.clone();
+            copy[index] = child;
+            return copy;
+        }
+        if(index == 0) return null;
+        Object[] copy = node.clone();
+        copy[index] = null;
+        return copy;
+    }
+
+    // Returns a vector without the element at the index. Elements after it shift down, so this is O(n)
+    public PersistentVector deleteAt(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        if(index == size - 1) return this.pop();
+        var builder = new Builder();
+        for(int i = 0; i < size; i++) {
+            if(i != index) builder.add(this.get(i));
+        }
+        return builder.build();
+    }
+
+    // Returns a vector with the value inserted before the index. Elements after it shift up, so this is O(n)
+    public PersistentVector insertAt(int index, RuntimeValue value) {
+        if(index == size) return this.append(value);
+        if(index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        var builder = new Builder();
+        for(int i = 0; i < size; i++) {
+            if(i == index) builder.add(value);
+            builder.add(this.get(i));
+        }
+        return builder.build();
+    }
+
+    // Walks leaf by leaf instead of descending the trie for every element
+    @Override
+    public Iterator<RuntimeValue> iterator() {
+        return new Iterator<>() {
+            private int index = 0;
+            private Object[] leaf = size > 0 ? leafFor(0) : null;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public RuntimeValue next() {
+                if(index >= size) throw new NoSuchElementException();
+                if(index > 0 && (index & MASK) == 0) {
+                    leaf = leafFor(index);
+                }
+                return (RuntimeValue) leaf[index++ & MASK];
+            }
+        };
+    }
+
+    // Mutable builder filling the trie in place, used to create a vector from scratch in O(n)
+    static final class Builder {
+        private int size = 0;
+        private int shift = BITS;
+        private Object[] root = EMPTY_ROOT;
+        private Object[] tail = new Object[WIDTH];
+        private int tailSize = 0;
+
+        public Builder add(RuntimeValue value) {
+            if(tailSize == WIDTH) {
+                if((size >>> BITS) > (1 << shift)) {
+                    Object[] newRoot = new Object[WIDTH];
+                    newRoot[0] = root;
+                    newRoot[1] = newPath(shift, tail);
+                    root = newRoot;
+                    shift += BITS;
+                }
+                else {
+                    root = pushTail(size, shift, root, tail);
+                }
+                tail = new Object[WIDTH];
+                tailSize = 0;
+            }
+            tail[tailSize++] = value;
+            size++;
+            return this;
+        }
+
+        public PersistentVector build() {
+            if(size == 0) return EMPTY;
+            return new PersistentVector(size, shift, root, Arrays.copyOf(tail, tailSize));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+// Message throughput of spawn, send and receive. The main script spawns the workers, sends every
+// worker its share of messages and waits for each to report back once it has received all of them.
+// Usage: java ProcessBenchmark [processes] [messages per process], runs on the engine set by -Ddex.engine
+public class ProcessBenchmark {
+
+    private static final String SOURCE = """
+            def worker(parent, count) do
+              received = 0
+              while received < count do
+                receive()
+                received = received + 1
+              end
+              send(parent, :done)
+            end
+
+            def send_all(pid, count) do
+              sent = 0
+              while sent < count do
+                send(pid, {:msg, sent})
+                sent = sent + 1
+              end
+            end
+
+            me = self()
+            pids = []
+            spawned = 0
+            while spawned < %1$d do
+              pids = List.append(pids, spawn(worker, me, %2$d))
+              spawned = spawned + 1
+            end
+            Enum.each(pids, fn pid -> send_all(pid, %2$d) end)
+            done = 0
+            while done < %1$d do
+              receive()
+              done = done + 1
+            end
+            """;
+
+    public static void main(String[] args) {
+        int processes = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        Environment env = Environment.createGlobalEnvironment();
+        Program program = new Parser().produceAst(SOURCE.formatted(processes, messages));
+        new Resolver(env).resolveProgram(program);
+
+        long start = System.nanoTime();
+        Engine.fromProperty().execute(program, env);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long total = (long) processes * messages;
+        System.out.printf("%d processes on %s threads, %d messages in %.3fs, %.0f messages/s%n",
+                processes, Processes.VIRTUAL ? "virtual" : "platform", total, seconds, total / seconds);
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Lightweight processes behind spawn, send, receive and self. Every process runs a function value on
+// its own thread with a fresh scope for the call and owns a mailbox only it reads from.
+// Threads are virtual when the JVM has them, the lookup is reflective so the interpreter still builds
+// and runs on 17, where processes fall back to daemon platform threads
+final class Processes {
+
+    private Processes() {}
+
+    private static final ThreadFactory THREADS = createThreadFactory();
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    private static final ThreadLocal<RPidValue> CURRENT = new ThreadLocal<>();
+
+    static final boolean VIRTUAL = THREADS != null;
+
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // Before 21, or a preview build without --enable-preview
+            return null;
+        }
+    }
+
+    private static Thread newThread(Runnable task) {
+        if(THREADS != null) return THREADS.newThread(task);
+        var thread = new Thread(task, "dex-process");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Process of the calling thread. The main script and any other thread get one on first use
+    static RPidValue self() {
+        var pid = CURRENT.get();
+        if(pid == null) {
+            pid = new RPidValue(NEXT_ID.incrementAndGet(), Thread.currentThread());
+            CURRENT.set(pid);
+        }
+        return pid;
+    }
+
+    static RPidValue spawn(RuntimeValue fn, ArrayList<RuntimeValue> args, Environment env) {
+        return spawn(fn, args, env, null);
+    }
+
+    // Starts a process. When result is given it completes with the return value of fn,
+    // or exceptionally if the call throws
+    static RPidValue spawn(RuntimeValue fn, ArrayList<RuntimeValue> args, Environment env, CompletableFuture<RuntimeValue> result) {
+        var pid = new RPidValue(NEXT_ID.incrementAndGet());
+        var thread = newThread(() -> {
+            CURRENT.set(pid);
+            try {
+                var value = Interpreter.callFunction(fn, args, env);
+                if(result != null) result.complete(value);
+            }
+            catch (DexError e) {
+                // Stops only this process. A task reports it to whoever awaits it
+                if(result != null) result.completeExceptionally(e);
+                else env.io().err.println(e.getMessage());
+            }
+            catch (Throwable e) {
+                if(result != null) result.completeExceptionally(e);
+                throw e;
+            }
+        });
+        // Set before start, a send right after spawn must be able to wake the process
+        pid.owner = thread;
+        thread.start();
+        return pid;
+    }
+
+    // Messages from one sender are taken in the order they were sent
+    static void send(RPidValue pid, RuntimeValue message) {
+        pid.mailbox.offer(message);
+        LockSupport.unpark(pid.owner);
+    }
+
+    // Waits for the next message of the calling process. Returns null after timeoutMillis, a negative
+    // timeout waits forever
+    static RuntimeValue receive(long timeoutMillis) {
+        var pid = self();
+        long deadline = timeoutMillis < 0 ? 0 : System.nanoTime() + timeoutMillis * 1_000_000;
+        RuntimeValue message;
+        while((message = pid.mailbox.poll()) == null) {
+            if(timeoutMillis < 0) {
+                LockSupport.park(pid);
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0) return null;
+            LockSupport.parkNanos(pid, remaining);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,287 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+// Lexical addressing pass. Runs after Parser.produceAst and gives every variable
+// reference a (depth, slot) coordinate, so the interpreter can read frames by index
+public class Resolver {
+
+    private static class Scope {
+        public Scope parent;
+        public HashMap<String, Integer> slots = new HashMap<>();
+
+        public Scope(Scope parent) {
+            this.parent = parent;
+        }
+
+        public int declare(String name) {
+            return this.slots.computeIfAbsent(name, k -> this.slots.size());
+        }
+
+        public int size() {
+            return this.slots.size();
+        }
+    }
+
+    // Function whose body is being resolved, collects its tail calls
+    private static class FunctionContext {
+        public boolean createsClosures = false;
+        public ArrayList<CallExpr> tailCalls = new ArrayList<>();
+    }
+
+    private FunctionContext function;
+
+    // Global frame of the program. Its slots are owned by the environment so they survive between REPL lines
+    private final Environment globals;
+
+    // Names assigned at the top level of the program being resolved
+    private final LinkedHashSet<String> globalNames = new LinkedHashSet<>();
+
+    public Resolver(Environment globals) {
+        this.globals = globals;
+    }
+
+    public void resolveProgram(Program program) {
+        this.globalNames.clear();
+        this.hoist(program.body, null);
+        for(var stmt: program.body) {
+            this.resolve(stmt, null);
+        }
+    }
+
+    // Declares the variables a scope owns before resolving its body.
+    // def names and destructured names always belong to the scope. A plain assignment
+    // belongs to it only when no enclosing scope declares the name, otherwise it assigns the outer variable
+    private void hoist(List<? extends Stmt> body, Scope scope) {
+        LinkedHashSet<String> owned = new LinkedHashSet<>();
+        LinkedHashSet<String> assigned = new LinkedHashSet<>();
+        for(var stmt: body) {
+            this.collectDeclarations(stmt, owned, assigned);
+        }
+
+        if(scope == null) {
+            this.globalNames.addAll(owned);
+            this.globalNames.addAll(assigned);
+            return;
+        }
+        for(var name: owned) {
+            scope.declare(name);
+        }
+        for(var name: assigned) {
+            if(!scope.slots.containsKey(name) && !this.isDeclared(name, scope.parent)) {
+                scope.declare(name);
+            }
+        }
+    }
+
+    private void collectDeclarations(Stmt stmt, LinkedHashSet<String> owned, LinkedHashSet<String> assigned) {
+        if(stmt == null || stmt.getKind() == null) return;
+        switch (stmt.getKind()) {
+            case MatchExpr -> {
+                var matchExpr = (MatchExpr) stmt;
+                if(matchExpr.toAssigned.getKind() == AstNode.Identifier) {
+                    assigned.add(((Identifier) matchExpr.toAssigned).symbol);
+                }
+                else {
+                    var targets = destructuredNames(matchExpr.toAssigned);
+                    if(targets != null) {
+                        for(var target: targets) owned.add(target.symbol);
+                    }
+                }
+                this.collectDeclarations(matchExpr.value, owned, assigned);
+            }
+            case FunctionDeclaration -> owned.add(((FunctionDeclaration) stmt).functionName);
+            case IfStatement -> {
+                // Blocks get their own scope, only the conditions run in this one
+                for(var clause: ((IfStatement) stmt).clauses) {
+                    this.collectDeclarations(clause.condition, owned, assigned);
+                }
+            }
+            case While -> {
+                var whileStatement = (WhileStatement) stmt;
+                this.collectDeclarations(whileStatement.condition, owned, assigned);
+                for(var s: whileStatement.body) this.collectDeclarations(s, owned, assigned);
+            }
+            case BinaryExpr -> {
+                this.collectDeclarations(((BinaryExpr) stmt).left, owned, assigned);
+                this.collectDeclarations(((BinaryExpr) stmt).right, owned, assigned);
+            }
+            case CallExpr -> {
+                this.collectDeclarations(((CallExpr) stmt).caller, owned, assigned);
+                for(var arg: ((CallExpr) stmt).args) this.collectDeclarations(arg, owned, assigned);
+            }
+            case MemberExpr -> this.collectDeclarations(((MemberExpr) stmt).object, owned, assigned);
+            case Tuple -> {
+                for(var content: ((Tuple) stmt).contents) this.collectDeclarations(content, owned, assigned);
+            }
+            case List -> {
+                for(var content: ((ListStructure) stmt).contents) this.collectDeclarations(content, owned, assigned);
+            }
+            case Map -> {
+                for(var value: ((MapStructure) stmt).map.values()) this.collectDeclarations(value, owned, assigned);
+            }
+            case StringLiteral -> {
+                for(var value: ((StringLiteral) stmt).getInterpolatedValues()) this.collectDeclarations(value, owned, assigned);
+            }
+            case ReturnStatement -> this.collectDeclarations(((ReturnStatement) stmt).returnValue, owned, assigned);
+            default -> {
+                // Literals, anonymous functions and break/continue declare nothing in this scope
+            }
+        }
+    }
+
+    // Tuple or list patterns made only of identifiers declare all of them, other patterns are compared by value
+    private static ArrayList<Identifier> destructuredNames(Expr pattern) {
+        ArrayList<Expr> contents;
+        if(pattern.getKind() == AstNode.Tuple) contents = ((Tuple) pattern).contents;
+        else if(pattern.getKind() == AstNode.List) contents = ((ListStructure) pattern).contents;
+        else return null;
+
+        if(contents.isEmpty() || !contents.stream().allMatch(n -> n.getKind() == AstNode.Identifier)) return null;
+        ArrayList<Identifier> names = new ArrayList<>();
+        for(var content: contents) names.add((Identifier) content);
+        return names;
+    }
+
+    private boolean isDeclared(String name, Scope scope) {
+        for(var s = scope; s != null; s = s.parent) {
+            if(s.slots.containsKey(name)) return true;
+        }
+        return this.globalNames.contains(name) || this.globals.containsVariable(name);
+    }
+
+    // Finds the nearest scope declaring the name. Names that are not declared anywhere
+    // resolve to a global slot and fail at run time if they are still unset
+    private void bind(Identifier identifier, Scope scope) {
+        int depth = 0;
+        for(var s = scope; s != null; s = s.parent) {
+            var slot = s.slots.get(identifier.symbol);
+            if(slot != null) {
+                identifier.depth = depth;
+                identifier.slot = slot;
+                return;
+            }
+            depth++;
+        }
+        identifier.depth = depth;
+        identifier.slot = this.globals.resolveSlot(identifier.symbol);
+    }
+
+    // result is the expression an anonymous function returns, null for defs whose tail calls follow return
+    private int resolveFunctionScope(List<Expr> parameters, List<? extends Stmt> body, Scope scope, Expr result) {
+        // A closure created inside a function keeps its frame alive
+        if(this.function != null) this.function.createsClosures = true;
+        var enclosing = this.function;
+        this.function = new FunctionContext();
+        this.markTailCall(result);
+
+        var fnScope = new Scope(scope);
+        for(var parameter: parameters) {
+            if(parameter.getKind() == AstNode.Identifier) {
+                var identifier = (Identifier) parameter;
+                identifier.depth = 0;
+                identifier.slot = fnScope.declare(identifier.symbol);
+            }
+        }
+        this.hoist(body, fnScope);
+        for(var stmt: body) {
+            this.resolve(stmt, fnScope);
+        }
+
+        for(var call: this.function.tailCalls) {
+            call.reusesFrame = !this.function.createsClosures;
+        }
+        this.function = enclosing;
+        return fnScope.size();
+    }
+
+    private void markTailCall(Expr result) {
+        if(this.function != null && result != null && result.getKind() == AstNode.CallExpr) {
+            var call = (CallExpr) result;
+            call.isTailCall = true;
+            this.function.tailCalls.add(call);
+        }
+    }
+
+    private void resolve(Stmt stmt, Scope scope) {
+        if(stmt == null || stmt.getKind() == null) return;
+        switch (stmt.getKind()) {
+            case Identifier -> this.bind((Identifier) stmt, scope);
+            case MatchExpr -> {
+                var matchExpr = (MatchExpr) stmt;
+                if(matchExpr.toAssigned.getKind() == AstNode.Identifier) {
+                    this.bind((Identifier) matchExpr.toAssigned, scope);
+                }
+                else {
+                    var targets = destructuredNames(matchExpr.toAssigned);
+                    if(targets != null) {
+                        for(var target: targets) this.bind(target, scope);
+                    }
+                    else {
+                        this.resolve(matchExpr.toAssigned, scope);
+                    }
+                }
+                this.resolve(matchExpr.value, scope);
+            }
+            case FunctionDeclaration -> {
+                var fd = (FunctionDeclaration) stmt;
+                fd.slot = scope == null ? this.globals.resolveSlot(fd.functionName) : scope.slots.get(fd.functionName);
+                fd.frameSize = this.resolveFunctionScope(fd.parameters, fd.body, scope, null);
+            }
+            case AnonymousFn -> {
+                var fn = (AnonymousFn) stmt;
+                fn.frameSize = this.resolveFunctionScope(fn.parameters, List.of(fn.returnExpr), scope, fn.returnExpr);
+            }
+            case IfStatement -> {
+                for(var clause: ((IfStatement) stmt).clauses) {
+                    this.resolve(clause.condition, scope);
+                    var blockScope = new Scope(scope);
+                    this.hoist(clause.block, blockScope);
+                    for(var s: clause.block) this.resolve(s, blockScope);
+                    clause.frameSize = blockScope.size();
+                }
+            }
+            case While -> {
+                var whileStatement = (WhileStatement) stmt;
+                this.resolve(whileStatement.condition, scope);
+                for(var s: whileStatement.body) this.resolve(s, scope);
+            }
+            case BinaryExpr -> {
+                this.resolve(((BinaryExpr) stmt).left, scope);
+                this.resolve(((BinaryExpr) stmt).right, scope);
+            }
+            case CallExpr -> {
+                this.resolve(((CallExpr) stmt).caller, scope);
+                for(var arg: ((CallExpr) stmt).args) this.resolve(arg, scope);
+            }
+            // The property names a module function, it is not a variable
+            case MemberExpr -> this.resolve(((MemberExpr) stmt).object, scope);
+            case Tuple -> {
+                for(var content: ((Tuple) stmt).contents) this.resolve(content, scope);
+            }
+            case List -> {
+                for(var content: ((ListStructure) stmt).contents) this.resolve(content, scope);
+            }
+            case Map -> {
+                // Identifier keys are read as atoms
+                for(var entry: ((MapStructure) stmt).map.entrySet()) {
+                    if(entry.getKey().getKind() != AstNode.Identifier) this.resolve(entry.getKey(), scope);
+                    this.resolve(entry.getValue(), scope);
+                }
+            }
+            case StringLiteral -> {
+                for(var value: ((StringLiteral) stmt).getInterpolatedValues()) this.resolve(value, scope);
+            }
+            case ReturnStatement -> {
+                ((ReturnStatement) stmt).topLevel = this.function == null;
+                // return f(x) hands its frame over to the call
+                this.markTailCall(((ReturnStatement) stmt).returnValue);
+                this.resolve(((ReturnStatement) stmt).returnValue, scope);
+            }
+            default -> {
+                // Literals and break/continue have nothing to resolve
+            }
+        }
+    }
+}
@@ -1,7 +1,13 @@
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 enum RuntimeValueType {
     Null,
@@ -12,6 +18,9 @@ enum RuntimeValueType {
     Tuple,
     List,
     Map,
+    Stream,
+    Pid,
+    Task,
     NativeFunction,
     Module,
     IfStatement,
@@ -20,7 +29,8 @@ enum RuntimeValueType {
     AnonymousFn,
     While,
     Break,
-    Continue
+    Continue,
+    Return
 }
 
 public abstract class RuntimeValue {
@@ -33,6 +43,8 @@ public abstract class RuntimeValue {
 }
 
 class RNullValue extends RuntimeValue {
+    public static final RNullValue NULL = new RNullValue();
+
     public RuntimeValueType kind = RuntimeValueType.Null;
     public String value = "null";
 
@@ -67,14 +79,34 @@ class RNullValue extends RuntimeValue {
 
 class RNumberValue extends RuntimeValue {
     public RuntimeValueType kind = RuntimeValueType.Number;
-    public Double number;
+    public double number;
+
+    // Shared instances of the integers most loops count with
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH = 1024;
+    private static final RNumberValue[] CACHE = new RNumberValue[CACHE_HIGH - CACHE_LOW + 1];
+
+    static {
+        for(int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = new RNumberValue(i + CACHE_LOW);
+        }
+    }
 
     public RNumberValue() {}
 
-    public RNumberValue(Double number) {
+    public RNumberValue(double number) {
         this.number = number;
     }
 
+    // Returns a shared instance for small integers. Values handed out here must not be modified
+    public static RNumberValue of(double number) {
+        int integer = (int) number;
+        if(integer == number && integer >= CACHE_LOW && integer <= CACHE_HIGH && (integer != 0 || Double.doubleToRawLongBits(number) == 0L)) {
+            return CACHE[integer - CACHE_LOW];
+        }
+        return new RNumberValue(number);
+    }
+
     @Override
     public String toString() {
         return "RNumberValue{" + number + "}";
@@ -88,9 +120,9 @@ class RNumberValue extends RuntimeValue {
     @Override
     public String toRawString() {
         if((number*10) % 10 == 0) {
-            return String.valueOf(number.intValue());
+            return String.valueOf((int) number);
         }
-        return number.toString();
+        return Double.toString(number);
     }
 
     @Override
@@ -98,7 +130,7 @@ class RNumberValue extends RuntimeValue {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         RNumberValue that = (RNumberValue) o;
-        return kind == that.kind && Objects.equals(number, that.number);
+        return kind == that.kind && Double.compare(number, that.number) == 0;
     }
 
     @Override
@@ -108,23 +140,50 @@ class RNumberValue extends RuntimeValue {
 }
 
 class RStringValue extends RuntimeValue {
-    public String value;
+    // Contents without the surrounding quotes. Null for the result of a concatenation until it is read
+    private volatile String value;
 
+    // Results of + share one append-only buffer, each being the first length characters of it
+    private final StringBuilder buffer;
+    private final int length;
 
-    public RStringValue() {}
     public RStringValue(String value) {
         this.value = value;
+        this.buffer = null;
+        this.length = value.length();
+    }
+
+    private RStringValue(StringBuilder buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    // Appending to the newest value of a buffer extends that buffer in place, any other value is copied
+    // into a fresh buffer with room to grow, so building a string with repeated + is amortized O(1) per step.
+    // Values created from a String never get a buffer, shared literals are never written to
+    public RStringValue concat(String suffix) {
+        if(buffer != null) {
+            synchronized (buffer) {
+                if(buffer.length() == length) {
+                    buffer.append(suffix);
+                    return new RStringValue(buffer, buffer.length());
+                }
+            }
+        }
+        var newBuffer = new StringBuilder(Math.max(16, 2 * (length + suffix.length())));
+        newBuffer.append(toRawString()).append(suffix);
+        return new RStringValue(newBuffer, newBuffer.length());
     }
 
     @Override
     public String toString() {
         return "RStringValue{" +
-                "value='" + value + '\'' +
+                "value='" + toRawString() + '\'' +
                 '}';
     }
 
     public String withQuotes() {
-        return "\"" + value.replaceAll("\"", "") + "\"";
+        return "\"" + toRawString() + "\"";
     }
 
     @Override
@@ -134,7 +193,14 @@ class RStringValue extends RuntimeValue {
 
     @Override
     public String toRawString() {
-        return value.replaceAll("\"", "");
+        String flat = value;
+        if(flat == null) {
+            synchronized (buffer) {
+                flat = buffer.substring(0, length);
+            }
+            value = flat;
+        }
+        return flat;
     }
 
     @Override
@@ -142,16 +208,19 @@ class RStringValue extends RuntimeValue {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         RStringValue that = (RStringValue) o;
-        return Objects.equals(value, that.value);
+        return length == that.length && toRawString().equals(that.toRawString());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(value);
+        return toRawString().hashCode();
     }
 }
 
 class RBooleanValue extends RuntimeValue {
+    public static final RBooleanValue TRUE = new RBooleanValue(true);
+    public static final RBooleanValue FALSE = new RBooleanValue(false);
+
     public Boolean value;
 
     public RBooleanValue() {}
@@ -159,6 +228,10 @@ class RBooleanValue extends RuntimeValue {
         this.value = value;
     }
 
+    public static RBooleanValue of(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
     @Override
     public String toString() {
         return "RBooleanValue{" + value + "}";
@@ -188,13 +261,27 @@ class RBooleanValue extends RuntimeValue {
     }
 }
 
+// Atoms are interned, every name has exactly one instance with a small integer id,
+// so equality is a reference check and the id is the hash
 class RAtomValue extends RuntimeValue {
-    public String value;
+    private static final ConcurrentHashMap<String, RAtomValue> TABLE = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
 
+    public final String value;
+    public final int id;
 
-    public RAtomValue(String value) {
+    private RAtomValue(String value, int id) {
         this.value = value;
+        this.id = id;
     }
+
+    // Returns the canonical atom for the name, creating it on first use
+    public static RAtomValue of(String value) {
+        var atom = TABLE.get(value);
+        if(atom != null) return atom;
+        return TABLE.computeIfAbsent(value, name -> new RAtomValue(name, NEXT_ID.getAndIncrement()));
+    }
+
     @Override
     public String toString() {
         return "RAtomValue{" + value + "}";
@@ -212,15 +299,12 @@ class RAtomValue extends RuntimeValue {
 
     @Override
     public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        RAtomValue that = (RAtomValue) o;
-        return value.equals(that.value);
+        return this == o;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(value);
+        return id;
     }
 }
 
@@ -273,16 +357,15 @@ class RTupleValue extends RuntimeValue {
     }
 }
 
+// Lists are immutable, every update returns a new RListValue sharing structure with the old one
 class RListValue extends RuntimeValue {
-    public ArrayList<RuntimeValue> contents;
-
-
+    public final PersistentVector contents;
 
     public RListValue() {
-        this.contents = new ArrayList<>();
+        this.contents = PersistentVector.EMPTY;
     }
 
-    public RListValue(ArrayList<RuntimeValue> contents) {
+    public RListValue(PersistentVector contents) {
         this.contents = contents;
     }
 
@@ -331,14 +414,14 @@ class RListValue extends RuntimeValue {
 }
 
 class RMapStructure extends RuntimeValue {
-    public HashMap<RuntimeValue, RuntimeValue> map;
+    public final PersistentMap map;
 
-    public RMapStructure(HashMap<RuntimeValue, RuntimeValue> map) {
+    public RMapStructure(PersistentMap map) {
         this.map = map;
     }
 
     public RMapStructure() {
-        this.map = new HashMap<>();
+        this.map = PersistentMap.EMPTY;
     }
 
     @Override
@@ -385,6 +468,80 @@ class RMapStructure extends RuntimeValue {
     }
 }
 
+// Lazy enumerable built by the Stream module. Holds how to open the pipeline, nothing runs
+// until a consumer iterates it and every iteration starts again from the source
+class RStreamValue extends RuntimeValue implements Iterable<RuntimeValue> {
+    private final Supplier<Iterator<RuntimeValue>> pipeline;
+
+    public RStreamValue(Supplier<Iterator<RuntimeValue>> pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public Iterator<RuntimeValue> iterator() {
+        return pipeline.get();
+    }
+
+    @Override
+    public RuntimeValueType getKind() {
+        return RuntimeValueType.Stream;
+    }
+
+    @Override
+    public String toRawString() {
+        return "#Stream<>";
+    }
+}
+
+// Identifies a process started by spawn, or the main script. Holds the mailbox of the process
+class RPidValue extends RuntimeValue {
+    public final long id;
+    final ConcurrentLinkedQueue<RuntimeValue> mailbox = new ConcurrentLinkedQueue<>();
+
+    // Thread running the process, woken up by send
+    volatile Thread owner;
+
+    public RPidValue(long id) {
+        this.id = id;
+    }
+
+    public RPidValue(long id, Thread owner) {
+        this.id = id;
+        this.owner = owner;
+    }
+
+    @Override
+    public RuntimeValueType getKind() {
+        return RuntimeValueType.Pid;
+    }
+
+    @Override
+    public String toRawString() {
+        return "#PID<" + id + ">";
+    }
+}
+
+// Process started by Task.async together with the value its function returns
+class RTaskValue extends RuntimeValue {
+    public final RPidValue pid;
+    public final CompletableFuture<RuntimeValue> result;
+
+    public RTaskValue(RPidValue pid, CompletableFuture<RuntimeValue> result) {
+        this.pid = pid;
+        this.result = result;
+    }
+
+    @Override
+    public RuntimeValueType getKind() {
+        return RuntimeValueType.Task;
+    }
+
+    @Override
+    public String toRawString() {
+        return "#Task<" + pid.toRawString() + ">";
+    }
+}
+
 @FunctionalInterface
 interface FunctionCall {
     RuntimeValue call(ArrayList<RuntimeValue> args, Environment env);
@@ -453,12 +610,18 @@ class RFunctionValue extends RuntimeValue {
     public String functionName;
     public ArrayList<Expr> parameters;
     public ArrayList<Stmt> body;
+    public int frameSize;
     public Environment declarationEnv;
 
-    public RFunctionValue(String functionName, ArrayList<Expr> parameters, ArrayList<Stmt> body, Environment declarationEnv) {
+    // Bookkeeping of the JitCompiler tier
+    public int callCount = 0;
+    public JitCode jitCode;
+
+    public RFunctionValue(String functionName, ArrayList<Expr> parameters, ArrayList<Stmt> body, int frameSize, Environment declarationEnv) {
         this.functionName = functionName;
         this.parameters = parameters;
         this.body = body;
+        this.frameSize = frameSize;
         this.declarationEnv = declarationEnv;
     }
 
@@ -478,12 +641,14 @@ class RFunctionValue extends RuntimeValue {
 class RAnonymousFn extends RuntimeValue {
     public ArrayList<Expr> parameters;
     public Expr returnExpr;
+    public int frameSize;
 
     public Environment declarationEnv;
 
-    public RAnonymousFn(ArrayList<Expr> parameters, Expr returnExpr, Environment declarationEnv) {
+    public RAnonymousFn(ArrayList<Expr> parameters, Expr returnExpr, int frameSize, Environment declarationEnv) {
         this.parameters = parameters;
         this.returnExpr = returnExpr;
+        this.frameSize = frameSize;
         this.declarationEnv = declarationEnv;
     }
 
@@ -576,6 +741,7 @@ class RWhile extends RuntimeValue {
 }
 
 class RBreak extends RuntimeValue {
+    public static final RBreak BREAK = new RBreak();
 
     @Override
     public RuntimeValueType getKind() {
@@ -589,6 +755,7 @@ class RBreak extends RuntimeValue {
 }
 
 class RContinue extends RuntimeValue {
+    public static final RContinue CONTINUE = new RContinue();
 
     @Override
     public RuntimeValueType getKind() {
@@ -600,3 +767,42 @@ class RContinue extends RuntimeValue {
         return null;
     }
 }
+
+// Completion value of a return statement. Carries the result up to the enclosing call
+class RReturn extends RuntimeValue {
+    public RuntimeValue value;
+
+    public RReturn(RuntimeValue value) {
+        this.value = value;
+    }
+
+    @Override
+    public RuntimeValueType getKind() {
+        return RuntimeValueType.Return;
+    }
+
+    @Override
+    public String toRawString() {
+        return value.toRawString();
+    }
+}
+
+// Return completion of a call in tail position. The call is made by the caller's caller,
+// after the returning function has given up its Java stack frame
+class RTailCall extends RReturn {
+    public RuntimeValue fn;
+    public ArrayList<RuntimeValue> args;
+    public boolean reusesFrame;
+
+    public RTailCall(RuntimeValue fn, ArrayList<RuntimeValue> args, boolean reusesFrame) {
+        super(null);
+        this.fn = fn;
+        this.args = args;
+        this.reusesFrame = reusesFrame;
+    }
+
+    @Override
+    public String toRawString() {
+        return null;
+    }
+}
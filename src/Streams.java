@@ -0,0 +1,219 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+// Stages of the lazy pipelines built by the Stream module. Every stage is an iterator pulling from
+// the one before it, a consumer drives the whole chain one element at a time, so a pipeline is a
+// single pass with no intermediate lists and stops as soon as the consumer or a take is satisfied
+final class Streams {
+
+    private Streams() {}
+
+    // Iterator computing its next element on demand. advance returns null once the input is exhausted
+    private abstract static class Stage implements Iterator<RuntimeValue> {
+        private RuntimeValue next;
+        private boolean done = false;
+
+        abstract RuntimeValue advance();
+
+        @Override
+        public boolean hasNext() {
+            if(next == null && !done) {
+                next = advance();
+                done = next == null;
+            }
+            return next != null;
+        }
+
+        @Override
+        public RuntimeValue next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            var value = next;
+            next = null;
+            return value;
+        }
+    }
+
+    static boolean isEnumerable(RuntimeValue value) {
+        var kind = value.getKind();
+        return kind == RuntimeValueType.List || kind == RuntimeValueType.Map || kind == RuntimeValueType.Stream;
+    }
+
+    // Elements of a list, {key, value} tuples of a map, or the output of a stream
+    static Iterator<RuntimeValue> elements(RuntimeValue enumerable) {
+        return switch (enumerable.getKind()) {
+            case List -> ((RListValue) enumerable).contents.iterator();
+            case Stream -> ((RStreamValue) enumerable).iterator();
+            case Map -> {
+                var entries = ((RMapStructure) enumerable).map.entrySet().iterator();
+                yield new Stage() {
+                    @Override
+                    RuntimeValue advance() {
+                        if(!entries.hasNext()) return null;
+                        Map.Entry<RuntimeValue, RuntimeValue> entry = entries.next();
+                        return pair(entry.getKey(), entry.getValue());
+                    }
+                };
+            }
+            default -> throw new IllegalArgumentException("Not enumerable: " + enumerable.getKind());
+        };
+    }
+
+    // Runs the pipeline into a list, a list is returned as it is
+    static PersistentVector toVector(RuntimeValue enumerable) {
+        if(enumerable.getKind() == RuntimeValueType.List) return ((RListValue) enumerable).contents;
+        var builder = new PersistentVector.Builder();
+        elements(enumerable).forEachRemaining(builder::add);
+        return builder.build();
+    }
+
+    static RuntimeValue call(RuntimeValue fn, RuntimeValue arg, Environment env) {
+        var args = new ArrayList<RuntimeValue>(1);
+        args.add(arg);
+        return Interpreter.callFunction(fn, args, env);
+    }
+
+    // Only false is falsy, same as if and while
+    static boolean isTruthy(RuntimeValue value) {
+        return value.getKind() != RuntimeValueType.Boolean || ((RBooleanValue) value).value;
+    }
+
+    private static RTupleValue pair(RuntimeValue first, RuntimeValue second) {
+        var tuple = new RTupleValue();
+        tuple.contents.add(first);
+        tuple.contents.add(second);
+        return tuple;
+    }
+
+    static RStreamValue map(RuntimeValue source, RuntimeValue fn, Environment env) {
+        return new RStreamValue(() -> {
+            var input = elements(source);
+            return new Stage() {
+                @Override
+                RuntimeValue advance() {
+                    return input.hasNext() ? call(fn, input.next(), env) : null;
+                }
+            };
+        });
+    }
+
+    static RStreamValue filter(RuntimeValue source, RuntimeValue fn, boolean keep, Environment env) {
+        return new RStreamValue(() -> {
+            var input = elements(source);
+            return new Stage() {
+                @Override
+                RuntimeValue advance() {
+                    while(input.hasNext()) {
+                        var value = input.next();
+                        if(isTruthy(call(fn, value, env)) == keep) return value;
+                    }
+                    return null;
+                }
+            };
+        });
+    }
+
+    static RStreamValue take(RuntimeValue source, int count) {
+        return new RStreamValue(() -> {
+            var input = elements(source);
+            return new Stage() {
+                private int taken = 0;
+
+                @Override
+                RuntimeValue advance() {
+                    // Never pulls past the last element needed, the stages before stop here too
+                    if(taken >= count || !input.hasNext()) return null;
+                    taken++;
+                    return input.next();
+                }
+            };
+        });
+    }
+
+    static RStreamValue drop(RuntimeValue source, int count) {
+        return new RStreamValue(() -> {
+            var input = elements(source);
+            return new Stage() {
+                private int dropped = 0;
+
+                @Override
+                RuntimeValue advance() {
+                    while(dropped < count && input.hasNext()) {
+                        input.next();
+                        dropped++;
+                    }
+                    return input.hasNext() ? input.next() : null;
+                }
+            };
+        });
+    }
+
+    static RStreamValue takeWhile(RuntimeValue source, RuntimeValue fn, Environment env) {
+        return new RStreamValue(() -> {
+            var input = elements(source);
+            return new Stage() {
+                @Override
+                RuntimeValue advance() {
+                    if(!input.hasNext()) return null;
+                    var value = input.next();
+                    return isTruthy(call(fn, value, env)) ? value : null;
+                }
+            };
+        });
+    }
+
+    // Pairs every element with its position, {element, index}
+    static RStreamValue withIndex(RuntimeValue source) {
+        return new RStreamValue(() -> {
+            var input = elements(source);
+            return new Stage() {
+                private int index = 0;
+
+                @Override
+                RuntimeValue advance() {
+                    return input.hasNext() ? pair(input.next(), RNumberValue.of(index++)) : null;
+                }
+            };
+        });
+    }
+
+    // Infinite stream of start, fn(start), fn(fn(start)), ...
+    static RStreamValue iterate(RuntimeValue start, RuntimeValue fn, Environment env) {
+        return new RStreamValue(() -> new Stage() {
+            private RuntimeValue current;
+
+            @Override
+            RuntimeValue advance() {
+                current = current == null ? start : call(fn, current, env);
+                return current;
+            }
+        });
+    }
+
+    // Runs fn on every element as a task, keeping at most maxConcurrency of them running ahead of the
+    // consumer. Results come out as {:ok, value} in the order of the input. Each result is awaited like
+    // Task.await, a failed task or one taking longer than Modules.TASK_TIMEOUT stops the script
+    static RStreamValue asyncMap(RuntimeValue source, RuntimeValue fn, int maxConcurrency, Environment env) {
+        return new RStreamValue(() -> {
+            var input = elements(source);
+            var running = new ArrayDeque<RTaskValue>();
+            return new Stage() {
+                @Override
+                RuntimeValue advance() {
+                    while(running.size() < maxConcurrency && input.hasNext()) {
+                        var args = new ArrayList<RuntimeValue>(1);
+                        args.add(input.next());
+                        var result = new CompletableFuture<RuntimeValue>();
+                        running.add(new RTaskValue(Processes.spawn(fn, args, env, result), result));
+                    }
+                    if(running.isEmpty()) return null;
+                    long deadline = System.nanoTime() + Modules.TASK_TIMEOUT * 1_000_000;
+                    return pair(RAtomValue.of("ok"), Modules.awaitTask(running.poll(), deadline, "Task.async_stream"));
+                }
+            };
+        });
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Total order over runtime values used by Enum.sort and Enum.reverse.
+// Kinds follow the precedence Number, Atom, Tuple, List, Map, String, the remaining kinds come after in
+// declaration order. Tuples, lists and maps order by size first, tuples and lists then element by element
+final class ValueComparator implements Comparator<RuntimeValue> {
+    public static final ValueComparator INSTANCE = new ValueComparator();
+
+    // Below this many elements a parallel sort costs more than it saves
+    static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    private static final int[] RANKS = new int[RuntimeValueType.values().length];
+
+    static {
+        RuntimeValueType[] precedence = {
+                RuntimeValueType.Number, RuntimeValueType.Atom, RuntimeValueType.Tuple,
+                RuntimeValueType.List, RuntimeValueType.Map, RuntimeValueType.String
+        };
+        Arrays.fill(RANKS, -1);
+        int rank = 0;
+        for(var kind: precedence) RANKS[kind.ordinal()] = rank++;
+        for(var kind: RuntimeValueType.values()) {
+            if(RANKS[kind.ordinal()] == -1) RANKS[kind.ordinal()] = rank++;
+        }
+    }
+
+    private ValueComparator() {}
+
+    // Sorts a copy of the values, in parallel for large inputs
+    static RuntimeValue[] sorted(List<RuntimeValue> values, Comparator<RuntimeValue> order) {
+        RuntimeValue[] array = values.toArray(new RuntimeValue[0]);
+        if(array.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(array, order);
+        }
+        else {
+            Arrays.sort(array, order);
+        }
+        return array;
+    }
+
+    @Override
+    public int compare(RuntimeValue lhs, RuntimeValue rhs) {
+        var kind = lhs.getKind();
+        if(kind != rhs.getKind()) {
+            return Integer.compare(RANKS[kind.ordinal()], RANKS[rhs.getKind().ordinal()]);
+        }
+        return switch (kind) {
+            case Number -> Double.compare(((RNumberValue) lhs).number, ((RNumberValue) rhs).number);
+            case Atom -> lhs == rhs ? 0 : ((RAtomValue) lhs).value.compareTo(((RAtomValue) rhs).value);
+            case String -> lhs.toRawString().compareTo(rhs.toRawString());
+            case Tuple -> compareContents(((RTupleValue) lhs).contents, ((RTupleValue) rhs).contents);
+            case List -> compareContents(((RListValue) lhs).contents, ((RListValue) rhs).contents);
+            case Map -> Integer.compare(((RMapStructure) lhs).map.size(), ((RMapStructure) rhs).map.size());
+            default -> 0;
+        };
+    }
+
+    private int compareContents(List<RuntimeValue> lhs, List<RuntimeValue> rhs) {
+        int result = Integer.compare(lhs.size(), rhs.size());
+        for(int i = 0; result == 0 && i < lhs.size(); i++) {
+            result = compare(lhs.get(i), rhs.get(i));
+        }
+        return result;
+    }
+}